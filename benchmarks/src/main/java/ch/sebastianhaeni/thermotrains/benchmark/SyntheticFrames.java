@@ -0,0 +1,85 @@
+package ch.sebastianhaeni.thermotrains.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.synthetic.TrainPassGenerator;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+/**
+ * Fixed synthetic inputs for the benchmarks at the frame size of the GoPro recordings, rendered with the
+ * {@link TrainPassGenerator}. The noise is seeded, so every run benchmarks the same pixels.
+ */
+public final class SyntheticFrames {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private static final double TILT = 1.0;
+
+  private SyntheticFrames() {
+    // nop
+  }
+
+  /**
+   * Renders the empty scene.
+   */
+  @Nonnull
+  public static Mat background() {
+    TrainPassGenerator generator = new TrainPassGenerator();
+    return generator.renderScene(generator.getWidth());
+  }
+
+  /**
+   * Renders the side view of the whole train, e.g. as a stand-in for the stitched train.
+   */
+  @Nonnull
+  public static Mat train(int cars) {
+    return generator(cars, 1).renderTrain();
+  }
+
+  /**
+   * Renders the frame in the middle of the pass, the train covers the whole frame in it.
+   */
+  @Nonnull
+  public static Mat middleFrame(int cars) {
+    TrainPassGenerator generator = generator(cars, 40);
+    int middle = generator.getFrameCount() / 2;
+    List<Mat> frame = new ArrayList<>();
+
+    int[] index = { 0 };
+    generator.render(mat -> {
+      if (index[0]++ == middle) {
+        frame.add(mat.clone());
+      }
+    });
+
+    return frame.get(0);
+  }
+
+  /**
+   * Renders all frames of the pass.
+   */
+  @Nonnull
+  public static List<Mat> frames(int cars, int speed) {
+    List<Mat> frames = new ArrayList<>();
+    generator(cars, speed).render(mat -> frames.add(mat.clone()));
+
+    return frames;
+  }
+
+  @Nonnull
+  private static TrainPassGenerator generator(int cars, int speed) {
+    TrainPassGenerator generator = new TrainPassGenerator();
+    generator.setCars(cars);
+    generator.setSpeed(speed);
+    generator.setEmptyFrames(0);
+    generator.setTilt(TILT);
+
+    return generator;
+  }
+}
@@ -0,0 +1,36 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import ch.sebastianhaeni.thermotrains.internals.geometry.MarginBox;
+import ch.sebastianhaeni.thermotrains.util.MatUtil;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MotionCropBenchmark {
+
+  private Mat frame;
+  private Mat background;
+
+  @Setup
+  public void setup() {
+    frame = SyntheticFrames.middleFrame(2);
+    background = MatUtil.background(SyntheticFrames.background());
+  }
+
+  @Benchmark
+  public Optional<MarginBox> findBoundingBox() {
+    return MotionCrop.findBoundingBox(frame, background, .9);
+  }
+}
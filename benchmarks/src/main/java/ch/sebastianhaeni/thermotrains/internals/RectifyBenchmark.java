@@ -0,0 +1,55 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import ch.sebastianhaeni.thermotrains.internals.geometry.Line;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static ch.sebastianhaeni.thermotrains.util.MatUtil.crop;
+import static org.opencv.core.Core.split;
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2HSV;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+
+/**
+ * Benchmarks the line search on the upper third of the value channel, like {@link Rectify} does it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RectifyBenchmark {
+
+  private Mat upperPart;
+
+  @Setup
+  public void setup() {
+    Mat hsv = new Mat();
+    cvtColor(SyntheticFrames.middleFrame(2), hsv, COLOR_BGR2HSV);
+
+    List<Mat> channels = new ArrayList<>();
+    split(hsv, channels);
+    Mat value = channels.get(2);
+
+    upperPart = crop(value, 0, 0, value.height() - value.height() / 3, 0);
+  }
+
+  @Benchmark
+  public Mat findMaxYFrequency() {
+    return Rectify.findMaxYFrequency(upperPart);
+  }
+
+  @Benchmark
+  public Optional<Line> getLine() {
+    return Rectify.getLine(upperPart);
+  }
+}
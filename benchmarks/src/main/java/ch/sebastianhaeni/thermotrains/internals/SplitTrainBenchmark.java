@@ -0,0 +1,49 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
+import static org.opencv.imgproc.Imgproc.THRESH_BINARY_INV;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+import static org.opencv.imgproc.Imgproc.threshold;
+
+/**
+ * Benchmarks the histogram of dark pixels over the mask of a stitched train, cropped to 2/3 of its height like
+ * {@link SplitTrain} does it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SplitTrainBenchmark {
+
+  private static final int CARS = 4;
+
+  private Mat mask;
+
+  @Setup
+  public void setup() {
+    Mat gray = new Mat();
+    cvtColor(SyntheticFrames.train(CARS), gray, COLOR_BGR2GRAY);
+
+    Mat dark = new Mat();
+    threshold(gray, dark, 38, 255, THRESH_BINARY_INV);
+
+    mask = new Mat(dark, new Rect(0, 0, dark.cols(), dark.rows() * 2 / 3));
+  }
+
+  @Benchmark
+  public int[] columnHistogram() {
+    return SplitTrain.columnHistogram(mask);
+  }
+}
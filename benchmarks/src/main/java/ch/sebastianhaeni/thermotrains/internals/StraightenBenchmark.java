@@ -0,0 +1,34 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class StraightenBenchmark {
+
+  private Mat frame;
+  private Mat destination;
+
+  @Setup
+  public void setup() {
+    frame = SyntheticFrames.middleFrame(2);
+    destination = new Mat();
+  }
+
+  @Benchmark
+  public Mat straighten() {
+    Straighten.straighten(frame, destination);
+    return destination;
+  }
+}
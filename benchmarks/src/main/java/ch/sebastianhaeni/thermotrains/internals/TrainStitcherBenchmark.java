@@ -0,0 +1,59 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks matching a single pair of frames and assembling the panorama of a whole pass.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrainStitcherBenchmark {
+
+  private static final int CARS = 3;
+  private static final int SPEED = 320;
+
+  private List<Mat> frames;
+
+  @Setup
+  public void setup() {
+    frames = SyntheticFrames.frames(CARS, SPEED);
+  }
+
+  @Benchmark
+  public TrainStitcher.Offset findOffset() {
+    return TrainStitcher.findOffset(frames.get(frames.size() / 2), frames.get(frames.size() / 2 + 1));
+  }
+
+  @Benchmark
+  public void stitch(Blackhole blackhole) {
+    FrameStage stage = TrainStitcher.stage();
+    List<Frame> result = new ArrayList<>();
+
+    for (int i = 0; i < frames.size(); i++) {
+      // the stage releases its input, so it gets a new header on the same pixels
+      Mat frame = frames.get(i);
+      stage.process(new Frame(i, frame.submat(0, frame.rows(), 0, frame.cols())), result::add);
+    }
+    stage.finish(result::add);
+
+    // the panorama is new on every call
+    blackhole.consume(result.get(0).getMat());
+    result.forEach(panorama -> panorama.getMat().release());
+  }
+}
@@ -0,0 +1,73 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.serialization.Calibration;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.opencv.calib3d.Calib3d.getOptimalNewCameraMatrix;
+import static org.opencv.imgproc.Imgproc.undistort;
+
+/**
+ * Benchmarks undistorting a frame with the cached remap maps of the stage against computing the maps for every frame
+ * with {@code undistort}. The calibration is read from the system property {@code calibration}, by default the GoPro
+ * calibration of the samples.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class UndistortBenchmark {
+
+  private static final String DEFAULT_CALIBRATION = "samples/calibration/gopro-calibration.json";
+
+  private Calibration calibration;
+  private FrameStage stage;
+  private Mat optimalNewCameraMatrix;
+  private Mat frame;
+  private Mat destination;
+
+  @Setup
+  public void setup() throws IOException {
+    calibration = Undistort.loadCalibration(System.getProperty("calibration", DEFAULT_CALIBRATION));
+    stage = Undistort.stage(calibration);
+    optimalNewCameraMatrix = getOptimalNewCameraMatrix(
+      calibration.getCameraMatrix(),
+      calibration.getDistCoeffs(),
+      calibration.getImageSize(),
+      1);
+    frame = SyntheticFrames.middleFrame(2);
+    destination = new Mat();
+  }
+
+  @Benchmark
+  public void remap(Blackhole blackhole) {
+    List<Frame> result = new ArrayList<>();
+
+    // the stage releases its input, so it gets a new header on the same pixels
+    stage.process(new Frame(0, frame.submat(0, frame.rows(), 0, frame.cols())), result::add);
+
+    // the undistorted frame is new on every call
+    blackhole.consume(result.get(0).getMat());
+    result.get(0).getMat().release();
+  }
+
+  @Benchmark
+  public Mat undistortEveryFrame() {
+    undistort(frame, destination, calibration.getCameraMatrix(), calibration.getDistCoeffs(), optimalNewCameraMatrix);
+    return destination;
+  }
+}
@@ -0,0 +1,61 @@
+package ch.sebastianhaeni.thermotrains.util;
+
+import java.util.concurrent.TimeUnit;
+
+import ch.sebastianhaeni.thermotrains.benchmark.SyntheticFrames;
+import com.google.gson.JsonObject;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+
+/**
+ * Benchmarks the serialization of a camera matrix as in the calibration files and of a whole gray frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializationUtilBenchmark {
+
+  @Param({ "cameraMatrix", "frame" })
+  public String input;
+
+  private Mat mat;
+  private JsonObject json;
+
+  @Setup
+  public void setup() {
+    if ("cameraMatrix".equals(input)) {
+      mat = new Mat(3, 3, CvType.CV_64F, new Scalar(0));
+      mat.put(0, 0, 1400.0, 0.0, 960.0, 0.0, 1400.0, 540.0, 0.0, 0.0, 1.0);
+    } else {
+      mat = new Mat();
+      cvtColor(SyntheticFrames.background(), mat, COLOR_BGR2GRAY);
+    }
+
+    json = SerializationUtil.matToJson(mat);
+  }
+
+  @Benchmark
+  public JsonObject matToJson() {
+    return SerializationUtil.matToJson(mat);
+  }
+
+  @Benchmark
+  public void matFromJson(Blackhole blackhole) {
+    Mat parsed = SerializationUtil.matFromJson(json);
+    blackhole.consume(parsed);
+    parsed.release();
+  }
+}
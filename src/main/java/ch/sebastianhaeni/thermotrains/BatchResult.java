@@ -0,0 +1,76 @@
+package ch.sebastianhaeni.thermotrains;
+
+import java.nio.file.Path;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Outcome of processing a single video in a {@link BatchRunner}.
+ */
+public final class BatchResult {
+  @Nonnull
+  private final Path video;
+  @Nonnull
+  private final String outputFolder;
+  private final int carCount;
+  private final long durationMillis;
+  @Nullable
+  private final Exception error;
+
+  private BatchResult(
+    @Nonnull Path video,
+    @Nonnull String outputFolder,
+    int carCount,
+    long durationMillis,
+    @Nullable Exception error) {
+
+    this.video = video;
+    this.outputFolder = outputFolder;
+    this.carCount = carCount;
+    this.durationMillis = durationMillis;
+    this.error = error;
+  }
+
+  @Nonnull
+  static BatchResult success(@Nonnull Path video, @Nonnull String outputFolder, int carCount, long durationMillis) {
+    return new BatchResult(video, outputFolder, carCount, durationMillis, null);
+  }
+
+  @Nonnull
+  static BatchResult failure(
+    @Nonnull Path video,
+    @Nonnull String outputFolder,
+    long durationMillis,
+    @Nonnull Exception error) {
+
+    return new BatchResult(video, outputFolder, 0, durationMillis, error);
+  }
+
+  public boolean isSuccess() {
+    return error == null;
+  }
+
+  @Nonnull
+  public Path getVideo() {
+    return video;
+  }
+
+  @Nonnull
+  public String getOutputFolder() {
+    return outputFolder;
+  }
+
+  public int getCarCount() {
+    return carCount;
+  }
+
+  public long getDurationMillis() {
+    return durationMillis;
+  }
+
+  @Nullable
+  public Exception getError() {
+    return error;
+  }
+}
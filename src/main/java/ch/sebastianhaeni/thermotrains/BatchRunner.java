@@ -0,0 +1,158 @@
+package ch.sebastianhaeni.thermotrains;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.metrics.MetricsReport;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.RunManifest;
+import ch.sebastianhaeni.thermotrains.pipeline.StageCache;
+import ch.sebastianhaeni.thermotrains.pipeline.TrainPipeline;
+import ch.sebastianhaeni.thermotrains.util.MatPool;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Core;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFiles;
+
+/**
+ * Runs the train steps on every video in a folder. Several videos are processed at once, every video writes to its own
+ * output folder named after the video. A failing video doesn't affect the others. All videos share a stage cache in
+ * {@code <output folder>/cache}, so running the batch again only computes what changed. Every video keeps a manifest of
+ * its completed steps, an interrupted batch resumes every video where it stopped. The metrics of every video are
+ * exported to its output folder.
+ * <p>
+ * Usage: {@code BatchRunner <input folder> <calibration json> <output folder> <workers>}
+ */
+public final class BatchRunner {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private static final Logger LOG = LogManager.getLogger(BatchRunner.class);
+  private static final String VIDEO_PATTERN = "**.{mp4,MP4,avi,AVI,mov,MOV}";
+  private static final String CACHE_FOLDER = "cache";
+  private static final long CACHE_MAX_BYTES = 16L * 1024 * 1024 * 1024;
+
+  private BatchRunner() {
+    // nop
+  }
+
+  public static void main(@Nonnull String[] args) throws InterruptedException {
+    if (args.length != 4) {
+      LOG.error("Usage: BatchRunner <input folder> <calibration json> <output folder> <workers>");
+      System.exit(1);
+    }
+
+    List<BatchResult> results = run(args[0], args[1], args[2], Integer.parseInt(args[3]));
+
+    long failed = results.stream()
+      .filter(result -> !result.isSuccess())
+      .count();
+
+    LOG.info("Processed {} videos, {} failed", results.size(), failed);
+
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Processes all videos in the input folder with the given number of workers.
+   *
+   * @return the result of every video in the order of the video files
+   */
+  @Nonnull
+  public static List<BatchResult> run(
+    @Nonnull String inputFolder,
+    @Nonnull String calibrationJsonFilename,
+    @Nonnull String outputFolder,
+    int workers) throws InterruptedException {
+
+    List<Path> videos = getFiles(inputFolder, VIDEO_PATTERN);
+    StageCache cache = new StageCache(new File(outputFolder, CACHE_FOLDER).getPath(), CACHE_MAX_BYTES);
+    ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+    try {
+      List<Future<BatchResult>> futures = new ArrayList<>();
+
+      for (Path video : videos) {
+        futures.add(executor.submit(() -> process(video, calibrationJsonFilename, outputFolder, cache)));
+      }
+
+      List<BatchResult> results = new ArrayList<>();
+
+      for (Future<BatchResult> future : futures) {
+        results.add(future.get());
+      }
+
+      return results;
+    } catch (ExecutionException e) {
+      // process catches everything a pipeline throws
+      throw new IllegalStateException(e.getCause());
+    } finally {
+      executor.shutdownNow();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+
+      // the pooled buffers of the batch are of no use to anyone else
+      MatPool.shared().clear();
+    }
+  }
+
+  @Nonnull
+  private static BatchResult process(
+    @Nonnull Path video,
+    @Nonnull String calibrationJsonFilename,
+    @Nonnull String outputFolder,
+    @Nonnull StageCache cache) {
+
+    String videoOutputFolder = new File(outputFolder, getBaseName(video)).getPath();
+    long start = System.currentTimeMillis();
+
+    LOG.info("Processing {} into {}", video, videoOutputFolder);
+
+    try {
+      TrainPipeline pipeline = new TrainPipeline(video.toString(), calibrationJsonFilename, videoOutputFolder);
+      pipeline.setCache(cache);
+      pipeline.setManifest(RunManifest.load(
+        videoOutputFolder,
+        RunManifest.fingerprint(video.toString(), calibrationJsonFilename)));
+
+      List<Frame> cars = pipeline.resume();
+      cars.forEach(car -> car.getMat().release());
+
+      MetricsReport.export(pipeline.getMetrics(), videoOutputFolder);
+
+      long duration = System.currentTimeMillis() - start;
+      LOG.info("Processed {} in {} ms, found {} cars", video, duration, cars.size());
+
+      return BatchResult.success(video, videoOutputFolder, cars.size(), duration);
+    } catch (Exception e) {
+      long duration = System.currentTimeMillis() - start;
+      LOG.error("Processing {} failed after {} ms", video, duration, e);
+
+      return BatchResult.failure(video, videoOutputFolder, duration, e);
+    }
+  }
+
+  /**
+   * Gets the file name of the video without its extension.
+   */
+  @Nonnull
+  private static String getBaseName(@Nonnull Path video) {
+    String fileName = video.getFileName().toString();
+    int extension = fileName.lastIndexOf('.');
+
+    return extension > 0 ? fileName.substring(0, extension) : fileName;
+  }
+}
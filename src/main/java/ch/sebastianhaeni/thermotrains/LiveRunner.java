@@ -0,0 +1,62 @@
+package ch.sebastianhaeni.thermotrains;
+
+import java.io.IOException;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.internals.FrameSampler;
+import ch.sebastianhaeni.thermotrains.internals.LiveCapture;
+import ch.sebastianhaeni.thermotrains.metrics.MetricsReport;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.LivePipeline;
+import org.apache.commons.lang3.math.NumberUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Core;
+
+/**
+ * Processes a train pass while it is recorded. The source is a video file that is still growing, a named pipe or the
+ * device index of a camera. The cars are written to {@code <output folder>/9-final} as soon as they have passed. Frames
+ * that are later than the latency budget are skipped.
+ * <p>
+ * Usage: {@code LiveRunner <video file, pipe or device index> <calibration json> <output folder> [latency budget ms]}
+ */
+public final class LiveRunner {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private static final Logger LOG = LogManager.getLogger(LiveRunner.class);
+
+  private LiveRunner() {
+    // nop
+  }
+
+  public static void main(@Nonnull String[] args) throws IOException, InterruptedException {
+    if (args.length != 3 && args.length != 4) {
+      LOG.error("Usage: LiveRunner <video file, pipe or device index> <calibration json> <output folder> "
+        + "[latency budget ms]");
+      System.exit(1);
+    }
+
+    LiveCapture capture = NumberUtils.isDigits(args[0]) ?
+      LiveCapture.device(Integer.parseInt(args[0])) :
+      LiveCapture.file(args[0]);
+
+    if (args.length == 4) {
+      capture.setLatencyBudget(Long.parseLong(args[3]));
+    }
+
+    FrameSampler sampler = new FrameSampler();
+    capture.setSampler(sampler::next);
+
+    LivePipeline pipeline = new LivePipeline(capture, args[1], args[2]);
+    List<Frame> cars = pipeline.run();
+    sampler.release();
+
+    LOG.info("Cut {} cars", cars.size());
+    MetricsReport.export(pipeline.getMetrics(), args[2]);
+  }
+}
@@ -1,19 +1,34 @@
 package ch.sebastianhaeni.thermotrains;
 
+import java.io.File;
+import java.util.EnumSet;
+
 import javax.annotation.Nonnull;
 
 import ch.sebastianhaeni.thermotrains.internals.*;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import ch.sebastianhaeni.thermotrains.metrics.MetricsReport;
+import ch.sebastianhaeni.thermotrains.pipeline.RunManifest;
+import ch.sebastianhaeni.thermotrains.pipeline.StageCache;
+import ch.sebastianhaeni.thermotrains.pipeline.TrainPipeline;
+import ch.sebastianhaeni.thermotrains.pipeline.TrainStep;
 import ch.sebastianhaeni.thermotrains.util.Procedure;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.Core;
 
+import static ch.sebastianhaeni.thermotrains.pipeline.StageCache.describeParameters;
+
 /**
- * Runs through the pipeline from {@code START_STEP} to {@code STOP_STEP}.
- * If {@code START_STEP} is > 1, then the input artifacts have to be present already.
- * Right now the pipeline pipes results with files.
- *
- * TODO piping without resorting to the file system should be supported
+ * Runs through the pipeline. Every completed step is recorded in the {@link RunManifest} of the output folder, a rerun
+ * resumes with the first step that is not complete. A step is not complete anymore if its parameters or its output
+ * files changed, or if one of the inputs changed. Delete {@code target/manifest.json} to run all steps again.
+ * The calibration steps pipe their results with files, the train steps 3 to 9 are piped in memory by the
+ * {@link TrainPipeline}. Their intermediate results are only written to disk with {@code DEBUG_TAP}. With
+ * {@code PIPELINED} the train steps run concurrently, each on its own worker. The outputs of the train steps are cached
+ * in {@code CACHE_FOLDER}, so a rerun only computes the steps after the last one whose parameters didn't change.
+ * Step 10 only runs if {@code METADATA_VIDEO} exists. At the end, the metrics of every step are exported to the output
+ * folder, see {@link MetricsReport}.
  */
 public final class PipelineRunner {
   static {
@@ -23,65 +38,106 @@ public final class PipelineRunner {
 
   private static final Logger LOG = LogManager.getLogger(PipelineRunner.class);
 
-  private static final int START_STEP = 9;
-  private static final int STOP_STEP = 9;
+  private static final boolean DEBUG_TAP = false;
+  private static final boolean PIPELINED = true;
+  private static final String OUTPUT_FOLDER = "target";
+  private static final String CACHE_FOLDER = "target/cache";
+  private static final long CACHE_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+
+  private static final String CALIBRATION_VIDEO = "samples/calibration/gopro-checkerboard.mp4";
+  private static final String TRAIN_VIDEO = "samples/distorted/gopro-moving-train-1.mp4";
+  private static final String METADATA_VIDEO = "/Users/rlaubscher/Desktop/review/2017-11-25@11-17-28-IR.seq.mp4";
 
   private PipelineRunner() {
     // nop
   }
 
   public static void main(@Nonnull String[] args) {
-    runStep(1, () -> ExtractFrames.extractFrames(
-      "samples/calibration/gopro-checkerboard.mp4",
-      "target/1-calibration"
-    ));
-    runStep(2, () -> CalibrateCamera.performCheckerboardCalibration(
-      "target/1-calibration",
-      "target/2-calibration-found"
-    ));
-    runStep(3, () -> PrepareTrainFrames.prepare(
-      "samples/distorted/gopro-moving-train-1.mp4",
-      "target/3-distorted"
-    ));
-    runStep(4, () -> Undistort.undistortImages(
+    Metrics metrics = new Metrics();
+    RunManifest manifest = RunManifest.load(
+      OUTPUT_FOLDER,
+      RunManifest.fingerprint(CALIBRATION_VIDEO, TRAIN_VIDEO));
+
+    runStep(manifest, metrics, 1, "target/1-calibration", describeParameters(ExtractFrames.class),
+      () -> ExtractFrames.extractFrames(
+        CALIBRATION_VIDEO,
+        "target/1-calibration"
+      ));
+    runStep(manifest, metrics, 2, "target/2-calibration-found",
+      describeParameters(CalibrateCamera.class, CheckerboardDetector.class),
+      () -> CalibrateCamera.performCheckerboardCalibration(
+        "target/1-calibration",
+        "target/2-calibration-found"
+      ));
+    runTrainSteps(manifest, metrics, new TrainPipeline(
+      TRAIN_VIDEO,
       "target/2-calibration-found/calibration.json",
-      "target/3-distorted",
-      "target/4-undistorted"
-    ));
-    runStep(5, () -> Straighten.straighten(
-      "target/4-undistorted",
-      "target/5-straightened"
-    ));
-    runStep(6, () -> MotionCrop.cropToMotion(
-      "target/5-straightened",
-      "target/6-cropped"
-    ));
-    runStep(7, () -> Rectify.transform(
-      "target/6-cropped",
-      "target/7-rectified"
-    ));
-    runStep(8, () -> TrainStitcher.stitchTrain(
-      "target/7-rectified",
-      "target/8-stitched"
-    ));
-    runStep(9, () -> SplitTrain.cut(
-      "target/8-stitched",
-      "target/9-final"
-    ));
-    runStep(10, () -> MetadataExtractor.exportScaling(
-      "/Users/rlaubscher/Desktop/review/2017-11-25@11-17-28-IR.seq.mp4",
-      "target/8-stitched",
-      "target/10-metadata"
+      OUTPUT_FOLDER
     ));
+    if (new File(METADATA_VIDEO).isFile()) {
+      // the metadata video is only an input of this step
+      runStep(manifest, metrics, 10, "target/10-metadata",
+        describeParameters(MetadataExtractor.class) + RunManifest.fingerprint(METADATA_VIDEO),
+        () -> MetadataExtractor.exportScaling(
+          METADATA_VIDEO,
+          "target/8-stitched",
+          "target/10-metadata"
+        ));
+    } else {
+      LOG.info("Skipping step 10, there is no metadata video {}", METADATA_VIDEO);
+    }
+
+    MetricsReport.export(metrics, OUTPUT_FOLDER);
   }
 
-  private static void runStep(int step, @Nonnull Procedure<?> procedure) {
-    if (START_STEP > step || STOP_STEP < step) {
+  /**
+   * Runs the train steps that are not complete yet.
+   */
+  private static void runTrainSteps(
+    @Nonnull RunManifest manifest,
+    @Nonnull Metrics metrics,
+    @Nonnull TrainPipeline pipeline) {
+
+    // step 10 reads the stitched train from disk
+    pipeline.setTappedSteps(DEBUG_TAP ?
+      EnumSet.allOf(TrainStep.class) :
+      EnumSet.of(TrainStep.STITCH, TrainStep.SPLIT));
+    pipeline.setPipelined(PIPELINED);
+    pipeline.setCache(new StageCache(CACHE_FOLDER, CACHE_MAX_BYTES));
+    pipeline.setManifest(manifest);
+    pipeline.setMetrics(metrics);
+
+    LOG.info("Running steps {} to {}", TrainStep.EXTRACT.getNumber(), TrainStep.SPLIT.getNumber());
+
+    run(pipeline::resume);
+  }
+
+  /**
+   * Runs the step unless it's complete. The steps after it depend on its output, so they have to run again.
+   *
+   * @param parameters the parameters of the implementation of the step, see {@link StageCache#describeParameters}
+   */
+  private static void runStep(
+    @Nonnull RunManifest manifest,
+    @Nonnull Metrics metrics,
+    int step,
+    @Nonnull String outputFolder,
+    @Nonnull String parameters,
+    @Nonnull Procedure<?> procedure) {
+
+    if (manifest.isComplete(step, parameters)) {
+      LOG.info("Step {} is complete", step);
       return;
     }
 
     LOG.info("Running step {}", step);
 
+    manifest.invalidateFrom(step);
+    run(() -> metrics.measure(new File(outputFolder).getName(), procedure));
+    manifest.complete(step, parameters, outputFolder);
+  }
+
+  private static void run(@Nonnull Procedure<?> procedure) {
     try {
       procedure.run();
     } catch (Exception e) {
@@ -0,0 +1,79 @@
+package ch.sebastianhaeni.thermotrains;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.internals.Undistort;
+import ch.sebastianhaeni.thermotrains.serialization.Calibration;
+import ch.sebastianhaeni.thermotrains.synthetic.TrainPassGenerator;
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Core;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFile;
+
+/**
+ * Generates synthetic train passes to load test the pipeline, e.g. with the {@link BatchRunner}. Every pass gets its
+ * own seeded length, speed, direction and tilt, so the same count and seed always generate the same videos. With a
+ * calibration, the lens distortion of the calibrated camera is applied.
+ * <p>
+ * Usage: {@code SyntheticVideoRunner <output folder> <count> <seed> [calibration json]}
+ */
+public final class SyntheticVideoRunner {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private static final Logger LOG = LogManager.getLogger(SyntheticVideoRunner.class);
+  private static final int MIN_CARS = 2;
+  private static final int MAX_CARS = 8;
+  private static final int MIN_SPEED = 20;
+  private static final int MAX_SPEED = 120;
+  private static final double MAX_TILT = 3.0;
+
+  private SyntheticVideoRunner() {
+    // nop
+  }
+
+  public static void main(@Nonnull String[] args) throws IOException {
+    if (args.length != 3 && args.length != 4) {
+      LOG.error("Usage: SyntheticVideoRunner <output folder> <count> <seed> [calibration json]");
+      System.exit(1);
+    }
+
+    Calibration calibration = args.length == 4 ? Undistort.loadCalibration(args[3]) : null;
+
+    generate(args[0], Integer.parseInt(args[1]), Long.parseLong(args[2]), calibration);
+  }
+
+  /**
+   * Generates the passes into the output folder.
+   */
+  public static void generate(
+    @Nonnull String outputFolder,
+    int count,
+    long seed,
+    @Nullable Calibration calibration) {
+
+    Random random = new Random(seed);
+
+    for (int i = 0; i < count; i++) {
+      TrainPassGenerator generator = new TrainPassGenerator();
+      generator.setCars(MIN_CARS + random.nextInt(MAX_CARS - MIN_CARS + 1));
+      generator.setSpeed(MIN_SPEED + random.nextInt(MAX_SPEED - MIN_SPEED + 1));
+      generator.setDirection(random.nextBoolean() ? Direction.FORWARD : Direction.REVERSE);
+      generator.setTilt((random.nextDouble() * 2 - 1) * MAX_TILT);
+      generator.setSeed(random.nextLong());
+      generator.setCalibration(calibration);
+
+      File file = getFile(outputFolder, String.format("pass-%03d.mp4", i));
+      generator.write(file.getPath());
+    }
+  }
+}
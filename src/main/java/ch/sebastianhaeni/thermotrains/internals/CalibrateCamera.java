@@ -17,26 +17,15 @@ import com.google.gson.GsonBuilder;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.Mat;
-import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point3;
 import org.opencv.core.Size;
-import org.opencv.core.TermCriteria;
 
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFile;
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
 import static ch.sebastianhaeni.thermotrains.util.MathUtil.Constants.RAD2DEG;
-import static org.opencv.calib3d.Calib3d.CALIB_CB_ADAPTIVE_THRESH;
-import static org.opencv.calib3d.Calib3d.CALIB_CB_NORMALIZE_IMAGE;
 import static org.opencv.calib3d.Calib3d.calibrateCamera;
-import static org.opencv.calib3d.Calib3d.drawChessboardCorners;
-import static org.opencv.calib3d.Calib3d.findChessboardCorners;
 import static org.opencv.core.CvType.CV_64F;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
-import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
-import static org.opencv.imgproc.Imgproc.cornerSubPix;
-import static org.opencv.imgproc.Imgproc.cvtColor;
 
 public final class CalibrateCamera {
 
@@ -72,34 +61,15 @@ public final class CalibrateCamera {
     List<Mat> imagePoints = new ArrayList<>();
     List<Mat> objectPoints = new ArrayList<>();
 
-    Size imageSize = imread(inputFiles.get(0).toString()).size();
+    List<CheckerboardDetector.Detection> detections =
+      CheckerboardDetector.detect(inputFiles, PATTERN_SIZE, outputFolder);
+    Size imageSize = detections.get(0).getImageSize();
 
-    for (int i = 0; i < inputFiles.size(); i++) {
-      Mat img = imread(inputFiles.get(i).toString());
-      Mat gray = new Mat();
-      cvtColor(img, gray, COLOR_BGR2GRAY);
-
-      // this will be filled by the detected corners
-      MatOfPoint2f corners = new MatOfPoint2f();
-      int flags = CALIB_CB_ADAPTIVE_THRESH + CALIB_CB_NORMALIZE_IMAGE;
-      boolean patternFound = findChessboardCorners(gray, PATTERN_SIZE, corners, flags);
-
-      if (!patternFound) {
-        LOG.warn("Could not find checkerboard pattern on image {}", i);
-        continue;
+    for (CheckerboardDetector.Detection detection : detections) {
+      if (detection.getCorners() != null) {
+        imagePoints.add(detection.getCorners());
+        objectPoints.add(objectPoint);
       }
-
-      int type = TermCriteria.EPS + TermCriteria.MAX_ITER;
-      TermCriteria criteria = new TermCriteria(type, 30, 0.1);
-      Size winSize = new Size(11, 11);
-      Size zeroZone = new Size(-1, -1);
-      cornerSubPix(gray, corners, winSize, zeroZone, criteria);
-
-      drawChessboardCorners(img, PATTERN_SIZE, corners, true);
-      saveMat(outputFolder, img, i);
-
-      imagePoints.add(corners);
-      objectPoints.add(objectPoint);
     }
 
     if (imagePoints.isEmpty()) {
@@ -0,0 +1,99 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.serialization.UndistortionMaps;
+import ch.sebastianhaeni.thermotrains.serialization.UndistortionMapsFile;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Looks up the calibrations by camera ID, e.g. {@code gopro}, {@code basler} or {@code flir}, in a folder holding the
+ * {@code <camera ID>-calibration.json} files written by {@link CalibrateCamera}, like {@code samples/calibration}.
+ * <p>
+ * The first time a calibration is used, its undistortion maps are computed and stored next to the JSON in a binary
+ * {@code <camera ID>-calibration.bin}, see {@link UndistortionMapsFile}. From then on, the binary file is memory mapped
+ * instead, so there's no JSON to parse and nothing to recompute. It's computed again when the JSON is newer. Once
+ * loaded, a calibration is kept for the lifetime of the process, so every run of a batch shares it.
+ */
+public final class CalibrationRegistry {
+
+  private static final Logger LOG = LogManager.getLogger(CalibrationRegistry.class);
+  private static final String JSON_SUFFIX = ".json";
+  private static final String BINARY_SUFFIX = ".bin";
+  private static final String CALIBRATION_SUFFIX = "-calibration";
+  private static final Map<Path, UndistortionMaps> LOADED = new ConcurrentHashMap<>();
+
+  @Nonnull
+  private final Path folder;
+
+  public CalibrationRegistry(@Nonnull Path folder) {
+    this.folder = folder;
+  }
+
+  /**
+   * Gets the calibration of the camera.
+   */
+  @Nonnull
+  public UndistortionMaps get(@Nonnull String cameraId) throws IOException {
+    return load(folder.resolve(cameraId + CALIBRATION_SUFFIX + JSON_SUFFIX));
+  }
+
+  /**
+   * Gets the calibration of the JSON file written by {@link CalibrateCamera}.
+   */
+  @Nonnull
+  public static UndistortionMaps load(@Nonnull String calibrationJsonFilename) throws IOException {
+    return load(Paths.get(calibrationJsonFilename));
+  }
+
+  @Nonnull
+  private static UndistortionMaps load(@Nonnull Path json) throws IOException {
+    try {
+      return LOADED.computeIfAbsent(json.toAbsolutePath().normalize(), CalibrationRegistry::read);
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  @Nonnull
+  private static UndistortionMaps read(@Nonnull Path json) {
+    String filename = json.getFileName().toString();
+    if (filename.endsWith(JSON_SUFFIX)) {
+      filename = filename.substring(0, filename.length() - JSON_SUFFIX.length());
+    }
+    Path binary = json.resolveSibling(filename + BINARY_SUFFIX);
+
+    try {
+      if (Files.exists(binary)
+        && Files.getLastModifiedTime(binary).compareTo(Files.getLastModifiedTime(json)) >= 0) {
+        try {
+          return UndistortionMapsFile.read(binary);
+        } catch (IOException e) {
+          LOG.warn("Cannot read {}, computing it again", binary, e);
+        }
+      }
+
+      LOG.info("Computing the undistortion maps of {}", json);
+      UndistortionMaps maps = Undistort.createMaps(Undistort.loadCalibration(json.toString()));
+
+      try {
+        UndistortionMapsFile.write(binary, maps);
+      } catch (IOException e) {
+        LOG.warn("Cannot store {}", binary, e);
+      }
+
+      return maps;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read " + json, e);
+    }
+  }
+}
@@ -0,0 +1,152 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.readMat;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
+import static org.opencv.calib3d.Calib3d.CALIB_CB_ADAPTIVE_THRESH;
+import static org.opencv.calib3d.Calib3d.CALIB_CB_FAST_CHECK;
+import static org.opencv.calib3d.Calib3d.CALIB_CB_NORMALIZE_IMAGE;
+import static org.opencv.calib3d.Calib3d.drawChessboardCorners;
+import static org.opencv.calib3d.Calib3d.findChessboardCorners;
+import static org.opencv.core.Core.multiply;
+import static org.opencv.core.CvType.CV_8UC1;
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
+import static org.opencv.imgproc.Imgproc.INTER_AREA;
+import static org.opencv.imgproc.Imgproc.cornerSubPix;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+import static org.opencv.imgproc.Imgproc.resize;
+
+/**
+ * Finds the checkerboard corners on the calibration images for {@link CalibrateCamera}.
+ * <p>
+ * The images are searched in parallel on a fork join pool. The corners are found on a copy scaled down to
+ * {@link #DETECTION_WIDTH} and then refined on the full resolution image. The detections are returned in the order of
+ * the files, so the calibration doesn't depend on which image was done first.
+ */
+public final class CheckerboardDetector {
+
+  private static final Logger LOG = LogManager.getLogger(CheckerboardDetector.class);
+  private static final int DETECTION_WIDTH = 960;
+  private static final int SUB_PIX_WINDOW = 11;
+
+  private CheckerboardDetector() {
+    // nop
+  }
+
+  /**
+   * Finds the corners of the pattern on every image and saves the image with the corners drawn to the output folder.
+   */
+  @Nonnull
+  static List<Detection> detect(@Nonnull List<Path> files, @Nonnull Size patternSize, @Nonnull String outputFolder) {
+    ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    try {
+      return pool.submit(() -> IntStream.range(0, files.size())
+        .parallel()
+        .mapToObj(i -> detect(files.get(i), i, patternSize, outputFolder))
+        .collect(Collectors.toList()))
+        .get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Checkerboard detection has been cancelled");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Cannot detect the checkerboards", e.getCause());
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+
+  @Nonnull
+  private static Detection detect(
+    @Nonnull Path file,
+    int index,
+    @Nonnull Size patternSize,
+    @Nonnull String outputFolder) {
+
+    try (MatScope scope = new MatScope()) {
+      Mat img = scope.track(readMat(file));
+      Mat gray = scope.acquire(img.size(), CV_8UC1);
+      cvtColor(img, gray, COLOR_BGR2GRAY);
+
+      double scale = Math.max(1.0, gray.width() / (double) DETECTION_WIDTH);
+      Mat small = gray;
+
+      if (scale > 1.0) {
+        small = scope.acquire();
+        resize(gray, small, new Size(gray.width() / scale, gray.height() / scale), 0, 0, INTER_AREA);
+      }
+
+      // this will be filled by the detected corners
+      MatOfPoint2f corners = new MatOfPoint2f();
+      int flags = CALIB_CB_ADAPTIVE_THRESH + CALIB_CB_NORMALIZE_IMAGE + CALIB_CB_FAST_CHECK;
+      boolean patternFound = findChessboardCorners(small, patternSize, corners, flags);
+
+      if (!patternFound) {
+        LOG.warn("Could not find checkerboard pattern on image {}", index);
+        corners.release();
+        return new Detection(img.size(), null);
+      }
+
+      // refine the corners on the full resolution
+      multiply(corners, new Scalar(scale, scale), corners);
+
+      int type = TermCriteria.EPS + TermCriteria.MAX_ITER;
+      TermCriteria criteria = new TermCriteria(type, 30, 0.1);
+      Size winSize = new Size(SUB_PIX_WINDOW, SUB_PIX_WINDOW);
+      Size zeroZone = new Size(-1, -1);
+      cornerSubPix(gray, corners, winSize, zeroZone, criteria);
+
+      drawChessboardCorners(img, patternSize, corners, true);
+      saveMat(outputFolder, img, index);
+
+      return new Detection(img.size(), corners);
+    }
+  }
+
+  /**
+   * The corners found on an image.
+   */
+  static final class Detection {
+    @Nonnull
+    private final Size imageSize;
+    @Nullable
+    private final MatOfPoint2f corners;
+
+    Detection(@Nonnull Size imageSize, @Nullable MatOfPoint2f corners) {
+      this.imageSize = imageSize;
+      this.corners = corners;
+    }
+
+    @Nonnull
+    Size getImageSize() {
+      return imageSize;
+    }
+
+    /**
+     * Gets the corners, or {@code null} if the pattern wasn't found.
+     */
+    @Nullable
+    MatOfPoint2f getCorners() {
+      return corners;
+    }
+  }
+}
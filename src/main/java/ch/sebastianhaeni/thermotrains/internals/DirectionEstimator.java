@@ -0,0 +1,138 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
+import static org.opencv.imgproc.Imgproc.INTER_AREA;
+import static org.opencv.imgproc.Imgproc.createHanningWindow;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+import static org.opencv.imgproc.Imgproc.phaseCorrelate;
+import static org.opencv.imgproc.Imgproc.resize;
+
+/**
+ * Estimates the direction the train travels in from consecutive frames. The frames are shrunk to a small grayscale
+ * image and the horizontal shift between two of them is found with phase correlation. Every clear shift is a vote for
+ * a direction, as soon as one direction leads by enough votes, the estimate is final and further frames are ignored.
+ * <p>
+ * Frames without motion, e.g. the empty track before the train arrives, correlate best without any shift and don't
+ * vote.
+ */
+public final class DirectionEstimator {
+
+  static final int WIDTH = 160;
+  private static final double MIN_SHIFT = 1.0;
+  private static final double MIN_RESPONSE = 0.1;
+  private static final int VOTE_MARGIN = 3;
+
+  @Nullable
+  private Mat previous;
+  @Nullable
+  private Mat window;
+  private int forwardVotes;
+  private int reverseVotes;
+  @Nullable
+  private Direction direction;
+
+  /**
+   * Adds the next frame.
+   *
+   * @return true if the direction is known now
+   */
+  public boolean add(@Nonnull Mat frame) {
+    if (direction != null) {
+      return true;
+    }
+
+    Mat current = shrink(frame);
+
+    if (previous == null) {
+      window = new Mat();
+      createHanningWindow(window, current.size(), CvType.CV_32F);
+      previous = current;
+
+      return false;
+    }
+
+    double[] response = new double[1];
+    Point shift = phaseCorrelate(previous, current, window, response);
+
+    previous.release();
+    previous = current;
+
+    if (response[0] < MIN_RESPONSE || Math.abs(shift.x) < MIN_SHIFT) {
+      // no motion
+      return false;
+    }
+
+    // the train travels forward from right to left, so the image moves left
+    if (shift.x < 0) {
+      forwardVotes++;
+    } else {
+      reverseVotes++;
+    }
+
+    if (forwardVotes - reverseVotes >= VOTE_MARGIN) {
+      direction = Direction.FORWARD;
+    } else if (reverseVotes - forwardVotes >= VOTE_MARGIN) {
+      direction = Direction.REVERSE;
+    }
+
+    if (direction != null) {
+      release();
+    }
+
+    return direction != null;
+  }
+
+  /**
+   * Gets the direction, {@code null} as long as it's not clear yet.
+   */
+  @Nullable
+  public Direction getDirection() {
+    return direction;
+  }
+
+  /**
+   * Releases the frames kept for the next comparison.
+   */
+  public void release() {
+    if (previous != null) {
+      previous.release();
+      previous = null;
+    }
+
+    if (window != null) {
+      window.release();
+      window = null;
+    }
+  }
+
+  /**
+   * Shrinks the frame to a floating point grayscale image {@link #WIDTH} pixels wide.
+   */
+  @Nonnull
+  static Mat shrink(@Nonnull Mat frame) {
+    try (MatScope scope = new MatScope()) {
+      Size size = new Size(WIDTH, Math.max(1, frame.height() * WIDTH / frame.width()));
+
+      Mat gray = scope.acquire(frame.size(), CvType.CV_8UC1);
+      cvtColor(frame, gray, COLOR_BGR2GRAY);
+
+      Mat small = scope.acquire(size, CvType.CV_8UC1);
+      resize(gray, small, size, 0, 0, INTER_AREA);
+
+      Mat result = new Mat();
+      small.convertTo(result, CvType.CV_32F);
+
+      return result;
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import static ch.sebastianhaeni.thermotrains.internals.DirectionEstimator.shrink;
+import static org.opencv.core.Core.REDUCE_AVG;
+import static org.opencv.core.Core.reduce;
+
+/**
+ * Drops frames that show the train at the same position as the last kept frame, e.g. when the train stops or crawls
+ * past the camera. Every frame is reduced to a fingerprint right after decoding: the mean brightness of every column of
+ * a tiny version of it. The displacement between two frames is the shift that matches their fingerprints best.
+ * <p>
+ * Frames are compared with the last kept frame rather than the one before, so a crawling train is kept whenever it
+ * moved far enough in total.
+ */
+public final class DuplicateFilter {
+
+  /**
+   * Displacement in columns of the fingerprint a frame needs to be kept.
+   */
+  private static final int MIN_DISPLACEMENT = 2;
+  private static final int MAX_DISPLACEMENT = 40;
+
+  /**
+   * A frame is kept after this many dropped ones anyway, so a repeating pattern on the train can't drop it entirely.
+   */
+  private static final int MAX_DROPPED_IN_A_ROW = 25;
+
+  @Nullable
+  private float[] kept;
+  private int droppedInARow;
+  private int dropped;
+
+  /**
+   * Checks whether the frame shows the train at the same position as the last kept frame. If not, it becomes the last
+   * kept frame.
+   */
+  public boolean isDuplicate(@Nonnull Mat frame) {
+    return isDuplicate(fingerprint(frame));
+  }
+
+  /**
+   * Checks whether the frame with the fingerprint shows the train at the same position as the last kept frame, see
+   * {@link #isDuplicate(Mat)}.
+   */
+  public boolean isDuplicate(@Nonnull float[] fingerprint) {
+    if (kept != null
+      && droppedInARow < MAX_DROPPED_IN_A_ROW
+      && Math.abs(findDisplacement(kept, fingerprint)) < MIN_DISPLACEMENT) {
+
+      droppedInARow++;
+      dropped++;
+      return true;
+    }
+
+    kept = fingerprint;
+    droppedInARow = 0;
+
+    return false;
+  }
+
+  /**
+   * Gets the number of frames dropped so far.
+   */
+  public int getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Gets the mean brightness of every column of the shrunk frame, minus the mean of the whole frame so a change in
+   * brightness alone doesn't count as motion.
+   */
+  @Nonnull
+  static float[] fingerprint(@Nonnull Mat frame) {
+    try (MatScope scope = new MatScope()) {
+      Mat small = scope.track(shrink(frame));
+      Mat profile = scope.acquire();
+      reduce(small, profile, 0, REDUCE_AVG, CvType.CV_32F);
+
+      float[] fingerprint = new float[profile.cols()];
+      profile.get(0, 0, fingerprint);
+
+      float mean = 0;
+      for (float value : fingerprint) {
+        mean += value;
+      }
+      mean /= fingerprint.length;
+
+      for (int i = 0; i < fingerprint.length; i++) {
+        fingerprint[i] -= mean;
+      }
+
+      return fingerprint;
+    }
+  }
+
+  /**
+   * Finds the shift of the second fingerprint against the first with the lowest mean absolute difference where they
+   * overlap.
+   */
+  static int findDisplacement(@Nonnull float[] first, @Nonnull float[] second) {
+    int length = Math.min(first.length, second.length);
+    int maxDisplacement = Math.min(MAX_DISPLACEMENT, length / 2);
+    int best = 0;
+    double bestDifference = Double.MAX_VALUE;
+
+    for (int shift = -maxDisplacement; shift <= maxDisplacement; shift++) {
+      double difference = 0;
+      int start = Math.max(0, -shift);
+      int end = Math.min(length, length - shift);
+
+      for (int x = start; x < end; x++) {
+        difference += Math.abs(first[x + shift] - second[x]);
+      }
+
+      difference /= end - start;
+
+      // prefer the smaller shift if they are equally good
+      if (difference < bestDifference || (difference == bestDifference && Math.abs(shift) < Math.abs(best))) {
+        bestDifference = difference;
+        best = shift;
+      }
+    }
+
+    return best;
+  }
+}
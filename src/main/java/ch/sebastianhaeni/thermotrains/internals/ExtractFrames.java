@@ -1,24 +1,44 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import ch.sebastianhaeni.thermotrains.metrics.CodecEvent;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import ch.sebastianhaeni.thermotrains.metrics.StageMetrics;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
 import ch.sebastianhaeni.thermotrains.util.Direction;
+import ch.sebastianhaeni.thermotrains.util.FrameRing;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Range;
+import org.opencv.core.Size;
 import org.opencv.videoio.VideoCapture;
 import org.opencv.videoio.Videoio;
 
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
-import static org.opencv.core.Core.flip;
 
 public final class ExtractFrames {
 
   private static final Logger LOG = LogManager.getLogger(ExtractFrames.class);
+  private static final int SEEK_DISTANCE = 60;
+  private static final int MIN_FRAMES_PER_SEGMENT = 8;
 
   private ExtractFrames() {
     // nop
@@ -31,38 +51,174 @@ public final class ExtractFrames {
     extractFrames(inputVideoFilename, outputFolder, Direction.FORWARD, 50);
   }
 
+  /**
+   * Extract n frames in a direction from an input file.
+   */
   static void extractFrames(
     @Nonnull String inputVideoFilename,
     @Nonnull String outputFolder,
     @Nonnull Direction direction,
     int framesToExtract) {
 
-    extractFrames(inputVideoFilename, outputFolder, direction, framesToExtract, 1);
+    emptyFolder(outputFolder);
+
+    extractFrames(inputVideoFilename, direction, framesToExtract,
+      frame -> saveMat(outputFolder, frame.getMat(), frame.getIndex()));
   }
 
   /**
-   * Extract n frames in a direction from an input file. The lengthFactor gets multiplied with the video length and only
-   * the frames from start this amount of frames will be considered.
+   * Extract n frames in a direction from an input file and hand them to the downstream consumer instead of writing them
+   * to disk. The video is decoded in parallel segments, one per processor.
    */
   static void extractFrames(
     @Nonnull String inputVideoFilename,
-    @Nonnull String outputFolder,
     @Nonnull Direction direction,
     int framesToExtract,
-    double lengthFactor) {
+    @Nonnull Consumer<Frame> downstream) {
 
-    emptyFolder(outputFolder);
+    int segments = Runtime.getRuntime().availableProcessors();
+    extractFrames(inputVideoFilename, direction, framesToExtract, segments, downstream);
+  }
 
-    VideoCapture capture = new VideoCapture();
+  /**
+   * Extract n frames in a direction from an input file and hand them to the downstream consumer. The frames to extract
+   * are split into segments, every segment is decoded on its own thread with its own {@link VideoCapture}. The frames
+   * are handed downstream in order on the calling thread, a segment is handed on as soon as it and all segments before
+   * it are decoded.
+   * <p>
+   * Only the extracted frames are decoded completely, the time taken scales with the number of frames extracted rather
+   * than with the length of the video. The frames are not mirrored, the direction is handed on with them.
+   */
+  static void extractFrames(
+    @Nonnull String inputVideoFilename,
+    @Nonnull Direction direction,
+    int framesToExtract,
+    int segments,
+    @Nonnull Consumer<Frame> downstream) {
 
-    if (!capture.open(inputVideoFilename)) {
-      throw new IllegalStateException("Cannot open the video file");
+    VideoCapture capture = open(inputVideoFilename);
+    int frameCount = (int) capture.get(Videoio.CAP_PROP_FRAME_COUNT);
+    List<Integer> positions = getPositions(direction, framesToExtract, frameCount);
+
+    Metrics.recordInput(new File(inputVideoFilename).length());
+
+    int segmentCount = Math.max(1, Math.min(segments, positions.size() / MIN_FRAMES_PER_SEGMENT));
+
+    if (segmentCount == 1) {
+      int[] frameCounter = { 0 };
+      decode(capture, inputVideoFilename, positions,
+        frame -> downstream.accept(new Frame(++frameCounter[0], frame, direction)));
+
+      return;
     }
 
+    capture.release();
+
+    LOG.info("Decoding {} frames in {} segments", positions.size(), segmentCount);
+
+    StageMetrics stage = Metrics.current();
+    ExecutorService executor = Executors.newFixedThreadPool(segmentCount);
+
+    try {
+      List<Future<List<Mat>>> futures = new ArrayList<>();
+
+      for (int segment = 0; segment < segmentCount; segment++) {
+        List<Integer> segmentPositions = positions.subList(
+          segment * positions.size() / segmentCount,
+          (segment + 1) * positions.size() / segmentCount);
+
+        futures.add(executor.submit(() -> decodeSegment(inputVideoFilename, segmentPositions, stage)));
+      }
+
+      int frameCounter = 0;
+
+      for (Future<List<Mat>> future : futures) {
+        for (Mat frame : future.get()) {
+          downstream.accept(new Frame(++frameCounter, frame, direction));
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Decoding has been cancelled");
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Cannot decode " + inputVideoFilename, e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Extract frames in the range of the video and hand them to the downstream consumer. The sampler gets every frame
+   * before it is handed on and decides how many frames to advance to the next one. Since each position depends on the
+   * frame before, the video is decoded sequentially on the calling thread.
+   * <p>
+   * The frames are decoded into the buffers of a {@link FrameRing}, the stage that is done with a frame releases it
+   * back into the ring.
+   */
+  static void extractFrames(
+    @Nonnull String inputVideoFilename,
+    @Nonnull Range range,
+    @Nonnull ToIntFunction<Mat> sampler,
+    @Nonnull Consumer<Frame> downstream) {
+
+    VideoCapture capture = open(inputVideoFilename);
+    FrameRing ring = createRing(capture);
+
+    Metrics.recordInput(new File(inputVideoFilename).length());
+
+    // position of the frame the capture decodes next
+    int capturePosition = 0;
+    int frameCounter = 0;
+
+    try {
+      for (int position = range.start; position < range.end; ) {
+        skip(capture, capturePosition, position, inputVideoFilename);
+        capturePosition = position + 1;
+
+        Mat frame = ring.acquire();
+
+        CodecEvent event = CodecEvent.start(CodecEvent.DECODE, inputVideoFilename);
+        long start = System.nanoTime();
+        boolean success = capture.read(frame);
+        Metrics.recordCodec(System.nanoTime() - start, 0, 0);
+        event.commit();
+
+        if (!success) {
+          LOG.warn("Cannot read frame {}", position);
+          frame.release();
+          position++;
+          continue;
+        }
+
+        position += Math.max(1, sampler.applyAsInt(frame));
+        downstream.accept(new Frame(++frameCounter, frame));
+      }
+    } finally {
+      capture.release();
+      ring.close();
+    }
+
+    LOG.info("Extracted {} of {} frames", frameCounter, range.size());
+    LOG.info("Frame ring: {}", ring);
+  }
+
+  /**
+   * Creates the ring of frame buffers in the resolution of the video.
+   */
+  @Nonnull
+  static FrameRing createRing(@Nonnull VideoCapture capture) {
+    Size size = new Size(capture.get(Videoio.CAP_PROP_FRAME_WIDTH), capture.get(Videoio.CAP_PROP_FRAME_HEIGHT));
+    return new FrameRing(FrameRing.DEFAULT_CAPACITY, size, CvType.CV_8UC3);
+  }
+
+  /**
+   * Gets the positions of the frames to extract in the video. Not every frame is extracted, but once in a while so we
+   * have a fixed number of frames not correlated to the frame count.
+   */
+  @Nonnull
+  private static List<Integer> getPositions(@Nonnull Direction direction, int framesToExtract, int frameCount) {
     boolean isForward = direction == Direction.FORWARD;
-    int frameCount = (int) (capture.get(Videoio.CAP_PROP_FRAME_COUNT) * lengthFactor);
     int framesBetween = (frameCount / framesToExtract) + 1;
-    int frameCounter = 0;
 
     Predicate<Integer> termination = isForward ?
       i -> i < frameCount :
@@ -72,29 +228,123 @@ public final class ExtractFrames {
       i -> i - 1;
 
     int i = isForward ? 0 : frameCount;
+    List<Integer> positions = new ArrayList<>();
 
-    Mat frame = new Mat();
-
-    while (termination.test(i) && frameCounter <= framesToExtract) {
+    // the video is always decoded from its start, i only decides which of the frames are extracted
+    for (int position = 0; termination.test(i) && positions.size() <= framesToExtract; position++) {
       i = increment.apply(i);
 
-      boolean success = capture.read(frame);
-      if (!success) {
-        LOG.warn("Cannot read frame {}", i);
-        continue;
-      }
-
       if (i > 1 && (i == 0 || i % framesBetween != 0)) {
-        // do not extract every frame, but once in a while so we have a fixed number of frames
-        // not correlated to the frame count
         continue;
       }
 
-      if (!isForward) {
-        flip(frame, frame, 1);
+      positions.add(position);
+    }
+
+    return positions;
+  }
+
+  /**
+   * Decodes a segment on a worker thread. Its codec time is recorded for the stage of the calling thread.
+   */
+  @Nonnull
+  private static List<Mat> decodeSegment(
+    @Nonnull String inputVideoFilename,
+    @Nonnull List<Integer> positions,
+    @Nullable StageMetrics stage) {
+
+    StageMetrics previous = Metrics.enter(stage);
+    List<Mat> frames = new ArrayList<>();
+
+    try {
+      decode(open(inputVideoFilename), inputVideoFilename, positions, frames::add);
+    } finally {
+      Metrics.enter(previous);
+    }
+
+    return frames;
+  }
+
+  /**
+   * Decodes the frames at the positions, hands them to the consumer and releases the capture. Frames that cannot be
+   * read are left out.
+   */
+  private static void decode(
+    @Nonnull VideoCapture capture,
+    @Nonnull String inputVideoFilename,
+    @Nonnull List<Integer> positions,
+    @Nonnull Consumer<Mat> consumer) {
+
+    // position of the frame the capture decodes next
+    int capturePosition = 0;
+
+    try {
+      for (int position : positions) {
+        // only the frames we keep are decoded and converted, the ones in between are skipped
+        skip(capture, capturePosition, position, inputVideoFilename);
+        capturePosition = position + 1;
+
+        Mat frame = new Mat();
+
+        CodecEvent event = CodecEvent.start(CodecEvent.DECODE, inputVideoFilename);
+        long start = System.nanoTime();
+        boolean success = capture.read(frame);
+        Metrics.recordCodec(System.nanoTime() - start, 0, 0);
+        event.commit();
+
+        if (!success) {
+          LOG.warn("Cannot read frame {}", position);
+          frame.release();
+          continue;
+        }
+
+        consumer.accept(frame);
       }
+    } finally {
+      capture.release();
+    }
+  }
+
+  @Nonnull
+  static VideoCapture open(@Nonnull String inputVideoFilename) {
+    VideoCapture capture = new VideoCapture();
 
-      saveMat(outputFolder, frame, ++frameCounter);
+    if (!capture.open(inputVideoFilename)) {
+      throw new IllegalStateException("Cannot open the video file");
     }
+
+    return capture;
+  }
+
+  /**
+   * Moves the capture from its position to the target position without retrieving the frames in between. Short gaps
+   * are grabbed frame by frame, long gaps are seeked over since that only decodes from the last keyframe before the
+   * target.
+   */
+  static void skip(
+    @Nonnull VideoCapture capture,
+    int position,
+    int target,
+    @Nonnull String inputVideoFilename) {
+
+    if (target == position) {
+      return;
+    }
+
+    CodecEvent event = CodecEvent.start(CodecEvent.SKIP, inputVideoFilename);
+    long start = System.nanoTime();
+
+    boolean seeked = target - position > SEEK_DISTANCE && capture.set(Videoio.CAP_PROP_POS_FRAMES, target);
+
+    if (!seeked) {
+      for (int i = position; i < target; i++) {
+        if (!capture.grab()) {
+          LOG.warn("Cannot skip frame {}", i);
+        }
+      }
+    }
+
+    Metrics.recordCodec(System.nanoTime() - start, 0, 0);
+    event.commit();
   }
 }
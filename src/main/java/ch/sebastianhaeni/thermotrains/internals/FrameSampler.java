@@ -0,0 +1,112 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+
+import static ch.sebastianhaeni.thermotrains.internals.DirectionEstimator.WIDTH;
+import static ch.sebastianhaeni.thermotrains.internals.DirectionEstimator.shrink;
+import static org.opencv.imgproc.Imgproc.createHanningWindow;
+import static org.opencv.imgproc.Imgproc.phaseCorrelate;
+
+/**
+ * Decides how many frames to advance after each extracted frame, so consecutive frames overlap by about the same
+ * amount whatever the train's speed. The horizontal velocity of the train is measured by phase correlating each frame
+ * with the one extracted before on tiny versions of them.
+ * <p>
+ * As long as there is no motion, e.g. before the train arrives, a default step is taken. The step shrinks right away
+ * when the train moves faster, but grows at most to twice the step before, so a wrong measurement cannot make us skip
+ * over the train.
+ */
+public final class FrameSampler {
+
+  /**
+   * The part of the frame width the train should move between two extracted frames.
+   */
+  private static final double TARGET_ADVANCE = .2;
+  private static final int DEFAULT_STEP = 8;
+  private static final int MAX_STEP = 60;
+  private static final double MIN_SHIFT = 1.0;
+  private static final double MIN_RESPONSE = 0.1;
+  private static final double SMOOTHING = .5;
+
+  @Nullable
+  private Mat previous;
+  @Nullable
+  private Mat window;
+  private int step = DEFAULT_STEP;
+  private double velocity;
+
+  /**
+   * Measures the motion between the frame and the one before and gets the number of frames to advance to the next
+   * frame to extract.
+   */
+  public int next(@Nonnull Mat frame) {
+    Mat current = shrink(frame);
+
+    if (previous == null) {
+      window = new Mat();
+      createHanningWindow(window, current.size(), CvType.CV_32F);
+      previous = current;
+
+      return step;
+    }
+
+    double[] response = new double[1];
+    Point shift = phaseCorrelate(previous, current, window, response);
+
+    previous.release();
+    previous = current;
+
+    return advance(shift.x, response[0], frame.width());
+  }
+
+  /**
+   * Adapts the step to the horizontal shift measured between the last two extracted frames and gets the number of
+   * frames to advance to the next frame to extract.
+   *
+   * @param shift      the shift in pixels of the frames shrunk to {@link DirectionEstimator#WIDTH}
+   * @param response   the peak response of the phase correlation, i.e. how sure the shift is
+   * @param frameWidth the width of the full resolution frames
+   */
+  public int advance(double shift, double response, int frameWidth) {
+    if (response < MIN_RESPONSE || Math.abs(shift) < MIN_SHIFT) {
+      // no motion, keep going at the current pace
+      return step;
+    }
+
+    // pixels per frame in the full resolution frame
+    double measured = Math.abs(shift) * frameWidth / WIDTH / step;
+    velocity = velocity == 0 ? measured : SMOOTHING * measured + (1 - SMOOTHING) * velocity;
+
+    int target = (int) Math.round(frameWidth * TARGET_ADVANCE / velocity);
+    step = Math.max(1, Math.min(Math.min(MAX_STEP, step * 2), target));
+
+    return step;
+  }
+
+  /**
+   * Gets the smoothed velocity of the train in pixels per frame, 0 as long as no motion was seen.
+   */
+  public double getVelocity() {
+    return velocity;
+  }
+
+  /**
+   * Releases the frame kept for the next comparison.
+   */
+  public void release() {
+    if (previous != null) {
+      previous.release();
+      previous = null;
+    }
+
+    if (window != null) {
+      window.release();
+      window = null;
+    }
+  }
+}
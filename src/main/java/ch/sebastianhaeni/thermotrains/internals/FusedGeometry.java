@@ -0,0 +1,337 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.internals.geometry.BoundingBox;
+import ch.sebastianhaeni.thermotrains.internals.geometry.MarginBox;
+import ch.sebastianhaeni.thermotrains.metrics.VisionEvent;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.serialization.UndistortionMaps;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import ch.sebastianhaeni.thermotrains.util.MatUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+
+import static org.opencv.core.Core.gemm;
+import static org.opencv.core.Core.invert;
+import static org.opencv.core.Core.perspectiveTransform;
+import static org.opencv.imgproc.Imgproc.INTER_LINEAR;
+import static org.opencv.imgproc.Imgproc.convertMaps;
+import static org.opencv.imgproc.Imgproc.invertAffineTransform;
+import static org.opencv.imgproc.Imgproc.remap;
+
+/**
+ * Undistorts, straightens, crops and rectifies the frames like {@link Undistort}, {@link Straighten},
+ * {@link MotionCrop} and {@link Rectify} in a row, but resamples every frame only once.
+ * <p>
+ * The rotation, the crop box and the perspective transform are estimated per video the same way the single stages do,
+ * with the rotation being the median angle of the first frames the tracks are found in. Once they are known, they are
+ * composed with the undistortion into one map from the rectified pixels to the pixels of the decoded frame, and every
+ * frame is remapped with it. Estimating the crop box still needs every frame undistorted and straightened, which is a
+ * single remap with the composed map of the first two steps.
+ */
+public final class FusedGeometry {
+
+  private static final Logger LOG = LogManager.getLogger(FusedGeometry.class);
+
+  private FusedGeometry() {
+    // nop
+  }
+
+  public static void transform(
+    @Nonnull String calibrationJsonFilename,
+    @Nonnull String inputFolder,
+    @Nonnull String outputFolder)
+    throws IOException {
+
+    FrameStage.runOnFolder(stage(CalibrationRegistry.load(calibrationJsonFilename)), inputFolder, outputFolder);
+  }
+
+  /**
+   * Creates the stage transforming every frame with the median parameters of all frames. Every frame with motion is
+   * held back until the last frame is seen, so the memory grows with the length of the pass. Use
+   * {@link #stage(UndistortionMaps, int)} to bound it.
+   */
+  @Nonnull
+  public static FrameStage stage(@Nonnull UndistortionMaps maps) {
+    return new GeometryStage(maps, 0);
+  }
+
+  /**
+   * Creates the stage transforming every frame with the median parameters of the first frames with motion. Once the
+   * warmup frames with motion are seen, the map is fixed and every further frame is transformed right away, so at most
+   * the warmup frames are held back. Used when the frames come in live and we can't wait for the last one. A warmup of
+   * 0 takes the median of all frames like {@link #stage(UndistortionMaps)}.
+   */
+  @Nonnull
+  public static FrameStage stage(@Nonnull UndistortionMaps maps, int warmup) {
+    return new GeometryStage(maps, warmup);
+  }
+
+  /**
+   * Creates the homography translating by the offset.
+   */
+  @Nonnull
+  private static Mat translation(double x, double y) {
+    Mat translation = Mat.eye(3, 3, CvType.CV_64F);
+    translation.put(0, 2, x);
+    translation.put(1, 2, y);
+
+    return translation;
+  }
+
+  /**
+   * Creates the homography of the second transform followed by the first, i.e. the product {@code first * second}.
+   */
+  @Nonnull
+  private static Mat compose(@Nonnull Mat first, @Nonnull Mat second) {
+    Mat composed = new Mat();
+    gemm(first, second, 1.0, new Mat(), 0.0, composed);
+
+    return composed;
+  }
+
+  /**
+   * Creates a map of the given size holding the coordinates of every pixel transformed by the homography.
+   */
+  @Nonnull
+  private static Mat coordinates(@Nonnull Size size, @Nonnull Mat homography) {
+    int width = (int) size.width;
+    int height = (int) size.height;
+    float[] data = new float[width * height * 2];
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int i = (y * width + x) * 2;
+        data[i] = x;
+        data[i + 1] = y;
+      }
+    }
+
+    Mat grid = new Mat(height, width, CvType.CV_32FC2);
+    grid.put(0, 0, data);
+
+    Mat coordinates = new Mat();
+    perspectiveTransform(grid, coordinates, homography);
+    grid.release();
+
+    return coordinates;
+  }
+
+  private static final class GeometryStage implements FrameStage {
+    private final List<Frame> frames = new ArrayList<>();
+    private final List<Double> angles = new ArrayList<>();
+    private final List<MarginBox> bboxes = new ArrayList<>();
+    private final int warmup;
+
+    // the undistortion maps from the undistorted pixels in the ROI to the decoded pixels
+    private final Mat undistortMap;
+    private final Size undistortedSize;
+
+    // the homography from the straightened to the undistorted pixels
+    @Nullable
+    private Mat rotation;
+    @Nullable
+    private Mat straightenMap1;
+    @Nullable
+    private Mat straightenMap2;
+    @Nullable
+    private Mat background;
+    @Nullable
+    private Mat map1;
+    @Nullable
+    private Mat map2;
+
+    GeometryStage(@Nonnull UndistortionMaps maps, int warmup) {
+      this.warmup = warmup;
+
+      // the maps are composed in floating point
+      undistortMap = new Mat();
+      convertMaps(maps.getMap1(), maps.getMap2(), undistortMap, new Mat(), CvType.CV_32FC2);
+      undistortedSize = maps.getRoi().size();
+    }
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      if (rotation != null) {
+        analyze(frame, downstream);
+        return;
+      }
+
+      Mat undistorted = new Mat();
+      remap(frame.getMat(), undistorted, undistortMap, new Mat(), INTER_LINEAR);
+      Straighten.findAngle(undistorted).ifPresent(angles::add);
+      undistorted.release();
+
+      frames.add(frame);
+
+      if (angles.size() >= Straighten.ANGLE_SAMPLES || frames.size() >= Straighten.MAX_ANGLE_FRAMES) {
+        fixRotation(downstream);
+      }
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      if (rotation == null) {
+        if (frames.isEmpty()) {
+          throw new IllegalStateException("Could not find any motion");
+        }
+
+        fixRotation(downstream);
+      }
+
+      if (map1 == null) {
+        if (bboxes.isEmpty()) {
+          throw new IllegalStateException("Could not find any motion");
+        }
+
+        settle(downstream);
+      }
+
+      undistortMap.release();
+      rotation.release();
+      straightenMap1.release();
+      straightenMap2.release();
+      background.release();
+      map1.release();
+      map2.release();
+    }
+
+    /**
+     * Fixes the median angle of the sampled frames and looks for motion in the frames held back so far.
+     */
+    private void fixRotation(@Nonnull Consumer<Frame> downstream) {
+      double angle = Straighten.getMedianAngle(angles, frames.size());
+
+      Mat affine = Straighten.getRotationMatrix(undistortedSize, angle);
+      Mat inverse = new Mat();
+      invertAffineTransform(affine, inverse);
+
+      rotation = Mat.eye(3, 3, CvType.CV_64F);
+      inverse.copyTo(rotation.rowRange(0, 2));
+      affine.release();
+      inverse.release();
+
+      straightenMap1 = new Mat();
+      straightenMap2 = new Mat();
+      composeMaps(rotation, undistortedSize, straightenMap1, straightenMap2);
+
+      List<Frame> sampled = new ArrayList<>(frames);
+      frames.clear();
+      sampled.forEach(frame -> analyze(frame, downstream));
+    }
+
+    /**
+     * Drops the frame if there's no motion in it, otherwise it's transformed or held back until the map is fixed.
+     */
+    private void analyze(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      Mat straightened = new Mat();
+      remap(frame.getMat(), straightened, straightenMap1, straightenMap2, INTER_LINEAR);
+
+      if (background == null) {
+        background = MatUtil.background(straightened);
+      }
+
+      Optional<MarginBox> boundingBox = MotionCrop.findBoundingBox(straightened, background, .9);
+      straightened.release();
+
+      if (!boundingBox.isPresent()) {
+        LOG.info("Found little to no motion on frame {}", frame.getIndex());
+        frame.getMat().release();
+        return;
+      }
+
+      LOG.info("Found motion in frame {}", frame.getIndex());
+
+      if (map1 != null) {
+        emit(frame, downstream);
+        return;
+      }
+
+      frames.add(frame);
+      bboxes.add(boundingBox.get());
+
+      if (warmup > 0 && bboxes.size() >= warmup) {
+        settle(downstream);
+      }
+    }
+
+    /**
+     * Fixes the crop box and the perspective transform, composes the map and transforms the frames held back so far.
+     */
+    private void settle(@Nonnull Consumer<Frame> downstream) {
+      MarginBox box = MotionCrop.getMedianBox(bboxes);
+      Size size = new Size(box.getRight() - box.getLeft(), box.getBottom() - box.getTop());
+
+      try (MatScope scope = new MatScope()) {
+        Mat crop = scope.track(compose(rotation, scope.track(translation(box.getLeft(), box.getTop()))));
+        Mat cropMap1 = scope.acquire();
+        Mat cropMap2 = scope.acquire();
+        composeMaps(crop, size, cropMap1, cropMap2);
+
+        List<BoundingBox> polygons = new ArrayList<>();
+        for (Frame frame : frames) {
+          Mat cropped = scope.acquire();
+          remap(frame.getMat(), cropped, cropMap1, cropMap2, INTER_LINEAR);
+          Rectify.findBoundingBox(cropped).ifPresent(polygons::add);
+        }
+
+        if (polygons.isEmpty()) {
+          throw new IllegalStateException("Could not find the train contour on any frame");
+        }
+
+        Mat perspective = scope.track(Rectify.getTransform(polygons));
+        Mat inverse = scope.acquire();
+        invert(perspective, inverse);
+
+        map1 = new Mat();
+        map2 = new Mat();
+        composeMaps(scope.track(compose(crop, inverse)), size, map1, map2);
+      }
+
+      frames.forEach(frame -> emit(frame, downstream));
+      frames.clear();
+    }
+
+    /**
+     * Composes the homography from the output to the undistorted pixels with the undistortion into fixed point maps
+     * from the output to the decoded pixels.
+     */
+    private void composeMaps(@Nonnull Mat homography, @Nonnull Size size, @Nonnull Mat map1, @Nonnull Mat map2) {
+      try (MatScope scope = new MatScope()) {
+        Mat coordinates = scope.track(coordinates(size, homography));
+        Mat composed = scope.acquire();
+
+        // pixels outside the undistorted image are mapped outside the decoded frame, so they stay black
+        remap(undistortMap, composed, coordinates, scope.acquire(), INTER_LINEAR, Core.BORDER_CONSTANT,
+          new Scalar(-1, -1));
+        convertMaps(composed, scope.acquire(), map1, map2, CvType.CV_16SC2);
+      }
+    }
+
+    private void emit(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      Mat dst = new Mat();
+
+      VisionEvent event = VisionEvent.start("remap", frame.getMat());
+      remap(frame.getMat(), dst, map1, map2, INTER_LINEAR);
+      event.commit();
+
+      frame.getMat().release();
+
+      downstream.accept(frame.withMat(dst));
+    }
+  }
+}
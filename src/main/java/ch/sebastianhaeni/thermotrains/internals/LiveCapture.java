@@ -0,0 +1,255 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.metrics.CodecEvent;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameSource;
+import ch.sebastianhaeni.thermotrains.util.FrameRing;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+/**
+ * Reads the frames of a pass while it is still being recorded, from a video file that is still growing, a named pipe
+ * or a camera by its device index.
+ * <p>
+ * A growing file is read up to its current end, then it's reopened after a short pause and read on from where we
+ * stopped. It's complete once no new frames were written for the idle timeout. A pipe or a camera ends when it can't be
+ * read anymore.
+ * <p>
+ * If the pipeline can't keep up, frames queue up in the source. Frames that are later than the latency budget compared
+ * to the time they were recorded at are skipped without decoding them, until the capture caught up again.
+ * <p>
+ * The frames are decoded into the buffers of a {@link FrameRing}.
+ */
+public final class LiveCapture implements FrameSource {
+
+  private static final Logger LOG = LogManager.getLogger(LiveCapture.class);
+  private static final long POLL_INTERVAL = 100;
+  private static final long DEFAULT_IDLE_TIMEOUT = 5000;
+  private static final long DEFAULT_LATENCY_BUDGET = 2000;
+  private static final double DEFAULT_FPS = 30;
+
+  @Nullable
+  private final String filename;
+  private final int device;
+  private long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+  private long latencyBudget = DEFAULT_LATENCY_BUDGET;
+  @Nullable
+  private ToIntFunction<Mat> sampler;
+
+  private LiveCapture(@Nullable String filename, int device) {
+    this.filename = filename;
+    this.device = device;
+  }
+
+  /**
+   * Reads from a video file that may still be growing or a named pipe.
+   */
+  @Nonnull
+  public static LiveCapture file(@Nonnull String filename) {
+    return new LiveCapture(filename, -1);
+  }
+
+  /**
+   * Reads from the camera with the device index.
+   */
+  @Nonnull
+  public static LiveCapture device(int device) {
+    return new LiveCapture(null, device);
+  }
+
+  @Override
+  public void produce(@Nonnull Consumer<Frame> downstream) {
+    boolean growing = filename != null && Files.isRegularFile(Paths.get(filename));
+    VideoCapture capture = growing ? awaitOpen() : open();
+    FrameRing ring = ExtractFrames.createRing(capture);
+
+    double fps = capture.get(Videoio.CAP_PROP_FPS);
+    if (fps <= 0) {
+      fps = DEFAULT_FPS;
+    }
+
+    long start = System.nanoTime();
+    long lastRead = start;
+
+    // number of frames grabbed so far and the position of the next frame to hand on
+    int position = 0;
+    int next = 0;
+    int frameCounter = 0;
+    int late = 0;
+
+    try {
+      while (true) {
+        if (Thread.currentThread().isInterrupted()) {
+          throw new CancellationException("Live capture has been cancelled");
+        }
+
+        CodecEvent event = CodecEvent.start(CodecEvent.SKIP, getName());
+        long grabStart = System.nanoTime();
+        boolean grabbed = capture.grab();
+        Metrics.recordCodec(System.nanoTime() - grabStart, 0, 0);
+        event.commit();
+
+        if (!grabbed) {
+          if (!growing || TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastRead) > idleTimeout) {
+            break;
+          }
+
+          // the recorder hasn't written any more frames yet
+          pause();
+          capture.release();
+          capture = awaitOpen();
+          if (position > 0 && !capture.set(Videoio.CAP_PROP_POS_FRAMES, position)) {
+            skipTo(capture, position);
+          }
+
+          continue;
+        }
+
+        lastRead = System.nanoTime();
+        int current = position++;
+
+        if (current < next) {
+          continue;
+        }
+
+        // how far the frame is behind the time it was recorded at
+        long lag = TimeUnit.NANOSECONDS.toMillis(lastRead - start) - (long) (current * 1000 / fps);
+
+        if (lag > latencyBudget) {
+          late++;
+          continue;
+        }
+
+        Mat frame = ring.acquire();
+
+        event = CodecEvent.start(CodecEvent.DECODE, getName());
+        long retrieveStart = System.nanoTime();
+        boolean success = capture.retrieve(frame);
+        Metrics.recordCodec(System.nanoTime() - retrieveStart, 0, 0);
+        event.commit();
+
+        if (!success) {
+          LOG.warn("Cannot read frame {}", current);
+          frame.release();
+          continue;
+        }
+
+        next = current + (sampler == null ? 1 : Math.max(1, sampler.applyAsInt(frame)));
+        downstream.accept(new Frame(++frameCounter, frame));
+      }
+    } finally {
+      capture.release();
+      ring.close();
+    }
+
+    LOG.info("Read {} of {} frames from {}, skipped {} late frames", frameCounter, position, getName(), late);
+    LOG.info("Frame ring: {}", ring);
+  }
+
+  @Nonnull
+  private VideoCapture open() {
+    VideoCapture capture = new VideoCapture();
+    boolean opened = filename == null ? capture.open(device) : capture.open(filename);
+
+    if (!opened) {
+      throw new IllegalStateException("Cannot open " + getName());
+    }
+
+    return capture;
+  }
+
+  /**
+   * Opens the growing file. The recorder may not have written enough of it to be opened yet, so it's tried again until
+   * the idle timeout passed.
+   */
+  @Nonnull
+  private VideoCapture awaitOpen() {
+    long start = System.nanoTime();
+
+    while (true) {
+      try {
+        return open();
+      } catch (IllegalStateException e) {
+        if (TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) > idleTimeout) {
+          throw e;
+        }
+
+        pause();
+      }
+    }
+  }
+
+  /**
+   * Grabs the frames up to the position if the capture can't seek.
+   */
+  private static void skipTo(@Nonnull VideoCapture capture, int position) {
+    for (int i = 0; i < position; i++) {
+      if (!capture.grab()) {
+        return;
+      }
+    }
+  }
+
+  private static void pause() {
+    try {
+      Thread.sleep(POLL_INTERVAL);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Live capture has been cancelled");
+    }
+  }
+
+  @Nonnull
+  private String getName() {
+    return filename == null ? "device " + device : filename;
+  }
+
+  public long getIdleTimeout() {
+    return idleTimeout;
+  }
+
+  /**
+   * Sets the time in milliseconds a growing file may not grow until it's considered complete.
+   */
+  public void setIdleTimeout(long idleTimeout) {
+    this.idleTimeout = idleTimeout;
+  }
+
+  public long getLatencyBudget() {
+    return latencyBudget;
+  }
+
+  /**
+   * Sets the time in milliseconds a frame may be behind the time it was recorded at before it is skipped.
+   */
+  public void setLatencyBudget(long latencyBudget) {
+    this.latencyBudget = latencyBudget;
+  }
+
+  @Nullable
+  public ToIntFunction<Mat> getSampler() {
+    return sampler;
+  }
+
+  /**
+   * Sets the sampler deciding how many frames to advance after every frame, see {@link FrameSampler}. Without one,
+   * every frame is handed on.
+   */
+  public void setSampler(@Nullable ToIntFunction<Mat> sampler) {
+    this.sampler = sampler;
+  }
+}
@@ -15,15 +15,13 @@ import org.apache.logging.log4j.Logger;
 import java.io.*;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
 
 public final class MetadataExtractor {
 
   private static final Logger LOG = LogManager.getLogger(MetadataExtractor.class);
-  private static int _minValue = 0;
-  private static double _scale = 1.0;
-  private static String _metadata = "";
 
   private MetadataExtractor() {
     //nop
@@ -31,11 +29,11 @@ public final class MetadataExtractor {
 
   public static void exportScaling(String videoFile, String sourceFolder, String outputFolder) {
     emptyFolder(outputFolder);
-    getMetadata(videoFile);
-    writeMetadata(sourceFolder, outputFolder);
+    String comment = getMetadata(videoFile);
+    writeMetadata(sourceFolder, outputFolder, comment);
   }
 
-  private static void writeMetadata(String srcFolder, String outputFolder) {
+  private static void writeMetadata(String srcFolder, String outputFolder, String comment) {
     List<Path> srcFiles = FileUtil.getFiles(srcFolder, "**.jpg");
 
     for (Path srcFile : srcFiles) {
@@ -63,17 +61,27 @@ public final class MetadataExtractor {
 
         final TiffOutputDirectory exifDirectory = outputSet.getOrCreateExifDirectory();
         exifDirectory.removeField(ExifTagConstants.EXIF_TAG_USER_COMMENT);
-        exifDirectory.add(ExifTagConstants.EXIF_TAG_USER_COMMENT, _metadata);
+        exifDirectory.add(ExifTagConstants.EXIF_TAG_USER_COMMENT, comment);
 
         new ExifRewriter().updateExifMetadataLossless(src, os, outputSet);
       }
       catch (Exception e) {
-        e.printStackTrace();
+        throw new IllegalStateException("Cannot write the metadata to " + dst, e);
       }
     }
   }
 
-  private static void getMetadata(String inputFile) {
+  /**
+   * Reads the scaling of the thermal values from the comment of the video. Returns the comment even if it's not a
+   * scaling, an empty string if there is no comment.
+   */
+  private static String getMetadata(String inputFile) {
+    String output = "";
+
+    if (!new File(inputFile).isFile()) {
+      throw new IllegalStateException("Cannot read the metadata of " + inputFile + ", it does not exist");
+    }
+
     try {
       StringBuffer sb = new StringBuffer();
       Process p = Runtime.getRuntime().exec("exiftool -s -s -s -Comment " + inputFile);
@@ -84,16 +92,24 @@ public final class MetadataExtractor {
       while ((line = reader.readLine()) != null) {
         sb.append(line + "\n");
       }
-      String output = sb.toString().replaceAll("\\n", "");
+      output = sb.toString().replaceAll("\\n", "");
       String[] values = output.split("/");
-      _metadata = output;
-      _minValue = Integer.valueOf(values[0]);
-      _scale = Double.valueOf(values[1].replace(',', '.'));
-      LOG.info("offset " + _minValue);
-      LOG.info("_scale " + _scale);
+      int minValue = Integer.valueOf(values[0]);
+      double scale = Double.valueOf(values[1].replace(',', '.'));
+      LOG.info("offset " + minValue);
+      LOG.info("scale " + scale);
     }
-    catch (Exception e) {
-      e.printStackTrace();
+    catch (IOException e) {
+      throw new UncheckedIOException("Cannot run exiftool on " + inputFile, e);
     }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Reading the metadata has been cancelled");
+    }
+    catch (RuntimeException e) {
+      LOG.warn("The comment of {} is not a scaling: {}", inputFile, output);
+    }
+
+    return output;
   }
 }
@@ -1,17 +1,22 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
-import java.nio.file.Path;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.function.ToIntFunction;
 import java.util.stream.IntStream;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import ch.sebastianhaeni.thermotrains.internals.geometry.MarginBox;
-import ch.sebastianhaeni.thermotrains.util.FileUtil;
+import ch.sebastianhaeni.thermotrains.metrics.VisionEvent;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
 import ch.sebastianhaeni.thermotrains.util.MatUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.Point;
@@ -19,11 +24,8 @@ import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
 import static ch.sebastianhaeni.thermotrains.util.MathUtil.median;
 import static org.opencv.core.Core.absdiff;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgproc.Imgproc.CHAIN_APPROX_SIMPLE;
 import static org.opencv.imgproc.Imgproc.MORPH_ELLIPSE;
 import static org.opencv.imgproc.Imgproc.RETR_EXTERNAL;
@@ -37,54 +39,49 @@ import static org.opencv.imgproc.Imgproc.threshold;
 public final class MotionCrop {
 
   private static final Logger LOG = LogManager.getLogger(MotionCrop.class);
+  private static final double DIFF_THRESHOLD = 40.0;
+  private static final int ERODE_SIZE = 10;
+  private static final int DILATE_SIZE = 50;
 
   private MotionCrop() {
     // nop
   }
 
   public static void cropToMotion(@Nonnull String inputFolder, @Nonnull String outputFolder) {
-    emptyFolder(outputFolder);
-
-    List<Path> inputFiles = FileUtil.getFiles(inputFolder, "**.jpg");
-    Mat background = MatUtil.background(inputFiles.get(0).toString());
-    Map<Integer, MarginBox> bboxes = new HashMap<>();
-
-    for (int i = 0; i < inputFiles.size(); i++) {
-      Path inputFile = inputFiles.get(i);
-      Mat img = imread(inputFile.toString());
-      Optional<MarginBox> boundingBox = findBoundingBox(img, background, .9);
-
-      if (!boundingBox.isPresent()) {
-        LOG.info("Found little to no motion on {}", inputFile);
-        continue;
-      }
+    FrameStage.runOnFolder(stage(), inputFolder, outputFolder);
+  }
 
-      LOG.info("Found motion in {}", inputFile);
+  /**
+   * Creates the stage cropping every frame to the median bounding box of the motion. The first frame is used as the
+   * background. Frames without motion are dropped.
+   */
+  @Nonnull
+  public static FrameStage stage() {
+    return new CropStage(0);
+  }
 
-      // save to disk
-      bboxes.put(i, boundingBox.get());
-    }
+  /**
+   * Creates the stage cropping every frame to the median bounding box of the motion in the first frames with motion.
+   * Once the warmup frames with motion are seen, the box is fixed and every further frame is cropped right away. Used
+   * when the frames come in live and we can't wait for the last one.
+   */
+  @Nonnull
+  public static FrameStage stage(int warmup) {
+    return new CropStage(warmup);
+  }
 
-    // get median bounding box
+  /**
+   * Gets the median of every side of the boxes.
+   */
+  @Nonnull
+  static MarginBox getMedianBox(@Nonnull Collection<MarginBox> boxes) {
     MarginBox medianBox = new MarginBox();
-    medianBox.setTop(getMedian(bboxes.values(), MarginBox::getTop));
-    medianBox.setBottom(getMedian(bboxes.values(), MarginBox::getBottom));
-    medianBox.setLeft(getMedian(bboxes.values(), MarginBox::getLeft));
-    medianBox.setRight(getMedian(bboxes.values(), MarginBox::getRight));
-
-    for (int i = 0; i < inputFiles.size(); i++) {
-
-      if (!bboxes.containsKey(i)) {
-        // if the key is not present, we found no motion in this file
-        continue;
-      }
+    medianBox.setTop(getMedian(boxes, MarginBox::getTop));
+    medianBox.setBottom(getMedian(boxes, MarginBox::getBottom));
+    medianBox.setLeft(getMedian(boxes, MarginBox::getLeft));
+    medianBox.setRight(getMedian(boxes, MarginBox::getRight));
 
-      Path inputFile = inputFiles.get(i);
-      Mat img = imread(inputFile.toString());
-      img = crop(img, medianBox);
-
-      saveMat(outputFolder, img, i);
-    }
+    return medianBox;
   }
 
   private static int getMedian(@Nonnull Collection<MarginBox> boxes, @Nonnull ToIntFunction<MarginBox> mapper) {
@@ -98,35 +95,47 @@ public final class MotionCrop {
 
   @Nonnull
   static Optional<MarginBox> findBoundingBox(@Nonnull Mat source, @Nonnull Mat background, double minWidthFactor) {
-    Mat dst = source.clone();
-    Mat gray = new Mat();
-    cvtColor(dst, gray, Imgproc.COLOR_BGR2GRAY);
+    try (MatScope scope = new MatScope()) {
+      return findBoundingBox(source, background, minWidthFactor, scope);
+    }
+  }
+
+  @Nonnull
+  private static Optional<MarginBox> findBoundingBox(
+    @Nonnull Mat source,
+    @Nonnull Mat background,
+    double minWidthFactor,
+    @Nonnull MatScope scope) {
+
+    Mat gray = scope.acquire(source.size(), CvType.CV_8UC1);
+    cvtColor(source, gray, Imgproc.COLOR_BGR2GRAY);
 
-    Mat diff = new Mat();
-    Mat t = new Mat();
+    Mat diff = scope.acquire(source.size(), CvType.CV_8UC1);
+    Mat t = scope.acquire(source.size(), CvType.CV_8UC1);
 
     // compute absolute diff between current frame and first frame
     absdiff(background, gray, diff);
-    threshold(diff, t, 40.0, 255.0, Imgproc.THRESH_BINARY);
+    threshold(diff, t, DIFF_THRESHOLD, 255.0, Imgproc.THRESH_BINARY);
 
     // erode to get rid of small dots
-    int erodeSize = 10;
-    Mat erodeElement = getStructuringElement(MORPH_ELLIPSE,
-      new Size(2 * erodeSize + 1, 2 * erodeSize + 1),
-      new Point(erodeSize, erodeSize));
+    Mat erodeElement = scope.track(getStructuringElement(MORPH_ELLIPSE,
+      new Size(2 * ERODE_SIZE + 1, 2 * ERODE_SIZE + 1),
+      new Point(ERODE_SIZE, ERODE_SIZE)));
     erode(t, t, erodeElement);
 
     // dilate the threshold image to fill in holes
-    int dilateSize = 50;
-    Mat dilateElement = getStructuringElement(MORPH_ELLIPSE,
-      new Size(2 * dilateSize + 1, 2 * dilateSize + 1),
-      new Point(dilateSize, dilateSize));
+    Mat dilateElement = scope.track(getStructuringElement(MORPH_ELLIPSE,
+      new Size(2 * DILATE_SIZE + 1, 2 * DILATE_SIZE + 1),
+      new Point(DILATE_SIZE, DILATE_SIZE)));
+    VisionEvent dilateEvent = VisionEvent.start("dilate", t);
     dilate(t, t, dilateElement); // TODO this seems to be hogging the CPU hard, is there a way around this?
+    dilateEvent.commit();
 
     // find contours
     List<MatOfPoint> contours = new ArrayList<>();
-    Mat hierarchy = new Mat();
+    Mat hierarchy = scope.acquire();
     findContours(t, contours, hierarchy, RETR_EXTERNAL, CHAIN_APPROX_SIMPLE);
+    scope.trackAll(contours);
 
     if (contours.isEmpty()) {
       // no contours, so we purge
@@ -138,11 +147,11 @@ public final class MotionCrop {
     // find bounding box of contour
     MarginBox bbox = new MarginBox();
     bbox.setTop(streamCoordinates(largestContour, 1).min().orElse(0));
-    bbox.setBottom(streamCoordinates(largestContour, 1).max().orElse(dst.height()));
+    bbox.setBottom(streamCoordinates(largestContour, 1).max().orElse(source.height()));
     bbox.setLeft(streamCoordinates(largestContour, 0).min().orElse(0));
-    bbox.setRight(streamCoordinates(largestContour, 0).max().orElse(dst.width()));
+    bbox.setRight(streamCoordinates(largestContour, 0).max().orElse(source.width()));
 
-    if (bbox.getRight() - bbox.getLeft() < (dst.width() * minWidthFactor)) {
+    if (bbox.getRight() - bbox.getLeft() < (source.width() * minWidthFactor)) {
       // => the motion area covers not almost the whole width
       // this can be one of the following reasons
       // - it's the start of the train
@@ -175,4 +184,77 @@ public final class MotionCrop {
     return IntStream.rangeClosed(0, contour.rows() - 1)
       .map(i -> (int) contour.get(i, 0)[index]);
   }
+
+  private static final class CropStage implements FrameStage {
+    private final List<Frame> frames = new ArrayList<>();
+    private final List<MarginBox> bboxes = new ArrayList<>();
+    private final int warmup;
+    private Mat background;
+    @Nullable
+    private MarginBox medianBox;
+
+    CropStage(int warmup) {
+      this.warmup = warmup;
+    }
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      if (background == null) {
+        background = MatUtil.background(frame.getMat());
+      }
+
+      Optional<MarginBox> boundingBox = findBoundingBox(frame.getMat(), background, .9);
+
+      if (!boundingBox.isPresent()) {
+        LOG.info("Found little to no motion on frame {}", frame.getIndex());
+        frame.getMat().release();
+        return;
+      }
+
+      LOG.info("Found motion in frame {}", frame.getIndex());
+
+      if (medianBox != null) {
+        emit(frame, downstream);
+        return;
+      }
+
+      frames.add(frame);
+      bboxes.add(boundingBox.get());
+
+      if (warmup > 0 && bboxes.size() >= warmup) {
+        settle(downstream);
+      }
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      if (medianBox == null) {
+        if (bboxes.isEmpty()) {
+          throw new IllegalStateException("Could not find any motion");
+        }
+
+        settle(downstream);
+      }
+
+      background.release();
+    }
+
+    /**
+     * Fixes the median bounding box and crops the frames held back so far.
+     */
+    private void settle(@Nonnull Consumer<Frame> downstream) {
+      medianBox = getMedianBox(bboxes);
+
+      frames.forEach(frame -> emit(frame, downstream));
+      frames.clear();
+    }
+
+    private void emit(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      Mat cropped = crop(frame.getMat(), medianBox);
+
+      // the crop keeps the image alive
+      frame.getMat().release();
+      downstream.accept(frame.withMat(cropped));
+    }
+  }
 }
@@ -1,96 +1,111 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
-import ch.sebastianhaeni.thermotrains.internals.geometry.MarginBox;
-import ch.sebastianhaeni.thermotrains.util.Direction;
-import ch.sebastianhaeni.thermotrains.util.FileUtil;
-import ch.sebastianhaeni.thermotrains.util.MatUtil;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.opencv.core.CvType;
-import org.opencv.core.Mat;
+import org.opencv.core.Range;
 
 import javax.annotation.Nonnull;
-import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
+import java.util.function.Consumer;
 
-import static ch.sebastianhaeni.thermotrains.internals.MotionCrop.findBoundingBox;
-import static ch.sebastianhaeni.thermotrains.util.Direction.FORWARD;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
 
 public final class PrepareTrainFrames {
 
   private static final Logger LOG = LogManager.getLogger(PrepareTrainFrames.class);
-  private static final int NUMBER_OF_FRAMES = 250;
-  private static final int DIRECTION_COUNT_THRESHOLD = 3;
 
   private PrepareTrainFrames() {
     // nop
   }
 
   public static void prepare(@Nonnull String inputFile, @Nonnull String outputFolder) {
+    emptyFolder(outputFolder);
 
-    // Goal: Figure out the direction the train is travelling
-
-    // Our approach to this is a bit rudimentary, time consuming and very slow. We basically extract some frames from
-    // the video, look for big motion regions and then decide if it's moving left or right. And we can only do this if
-    // we grab a sufficient amount of frames of the video. If we grab too little, there might be a frame with only
-    // background and on the next the train is fully on it.
-    // This is bad in a way because we have to check a lot of empty frames where the train isn't even in the frame yet.
-
-    // extract half the frames from half of the video
-    ExtractFrames.extractFrames(inputFile, outputFolder, FORWARD, NUMBER_OF_FRAMES / 2, .5);
-
-    LOG.info("Analyzing frames to find direction");
-    Direction direction = getDirection(outputFolder);
-    LOG.info("The train's direction is {}", direction);
+    prepare(inputFile, frame -> {
+      saveMat(outputFolder, frame.getMat(), frame.getIndex());
+      frame.getMat().release();
+    });
+  }
 
-    // extract all frames in the direction we just found
-    ExtractFrames.extractFrames(inputFile, outputFolder, direction, NUMBER_OF_FRAMES);
+  /**
+   * Extracts the frames of the train and hands them to the downstream consumer together with the direction the train
+   * travels in. The video is decoded once. How far apart the frames are depends on the train's speed, see
+   * {@link FrameSampler}. Only the frames the train is in are decoded, see {@link TrainPresence}. The frames are
+   * prepared by the {@link #stage()} as they come in.
+   * <p>
+   * Since the sampler decides the next position from the current frame, the range is decoded sequentially. The
+   * segmented parallel decoding of {@link ExtractFrames} needs the positions up front, it's only used for the
+   * calibration frames. Decoding the whole range in parallel to sample afterwards would convert and hold every frame of
+   * the pass instead of the sampled ones, and the frames skipped by the sampler are only grabbed, not converted.
+   */
+  public static void prepare(@Nonnull String inputFile, @Nonnull Consumer<Frame> downstream) {
+    FrameStage stage = stage();
+    FrameSampler sampler = new FrameSampler();
+    Range range = TrainPresence.find(inputFile);
+
+    ExtractFrames.extractFrames(inputFile, range, sampler::next, frame -> stage.process(frame, downstream));
+
+    sampler.release();
+    LOG.info("The train moved {} pixels per frame", String.format("%.1f", sampler.getVelocity()));
+
+    stage.finish(downstream);
   }
 
+  /**
+   * Creates the stage preparing the decoded frames. Frames showing the train at the same position as the frame before
+   * are dropped, see {@link DuplicateFilter}. The direction is found from the first frames as they come in. These are
+   * held back until the direction is known, all frames after are handed on right away.
+   */
   @Nonnull
-  private static Direction getDirection(@Nonnull String outputFolder) {
-    List<Path> inputFiles = FileUtil.getFiles(outputFolder, "**.jpg");
-
-    // use a black frame as background since we cannot guarantee that the first frame is just background
-    Mat background = new Mat(MatUtil.background(inputFiles.get(0).toString()).size(), CvType.CV_8U);
-
-    int rightCount = 0;
-    int leftCount = 0;
-
-    MarginBox last = null;
-
-    for (Path file : inputFiles) {
-      Mat img = imread(file.toString());
-      Optional<MarginBox> boundingBox = findBoundingBox(img, background, .1);
+  public static FrameStage stage() {
+    return new PrepareStage();
+  }
 
-      if (!boundingBox.isPresent()) {
-        // no motion
-        continue;
+  private static final class PrepareStage implements FrameStage {
+    private final DirectionEstimator estimator = new DirectionEstimator();
+    private final DuplicateFilter duplicates = new DuplicateFilter();
+    private final List<Frame> pending = new ArrayList<>();
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      // a stopped or crawling train would only add the same image over and over again
+      if (duplicates.isDuplicate(frame.getMat())) {
+        frame.getMat().release();
+        return;
       }
 
-      if (last == null) {
-        last = boundingBox.get();
-        continue;
+      if (estimator.getDirection() != null) {
+        downstream.accept(frame.withDirection(estimator.getDirection()));
+        return;
       }
 
-      if (boundingBox.get().getLeft() - last.getLeft() < 0) {
-        rightCount++;
-      } else if (boundingBox.get().getRight() - last.getRight() > 0) {
-        leftCount++;
-      }
+      // We measure the shift between consecutive frames on tiny versions of them and decide if it's moving left or
+      // right. We stop as soon as the estimate is clear, usually after a few frames with the train in them.
+      pending.add(frame);
 
-      last = boundingBox.get();
+      if (estimator.add(frame.getMat())) {
+        LOG.info("The train's direction is {}", estimator.getDirection());
 
-      if (rightCount > DIRECTION_COUNT_THRESHOLD) {
-        return FORWARD;
-      }
-      if (leftCount > DIRECTION_COUNT_THRESHOLD) {
-        return Direction.REVERSE;
+        pending.forEach(pendingFrame -> downstream.accept(pendingFrame.withDirection(estimator.getDirection())));
+        pending.clear();
       }
     }
 
-    throw new IllegalStateException("Could not find any motion");
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      estimator.release();
+      LOG.info("Dropped {} frames without motion", duplicates.getDropped());
+
+      if (estimator.getDirection() == null) {
+        pending.forEach(frame -> frame.getMat().release());
+        throw new IllegalStateException(pending.isEmpty() ?
+          "Could not extract any frames" :
+          "Could not find any motion");
+      }
+    }
   }
 }
@@ -1,33 +1,34 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
-import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.ToDoubleFunction;
-import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 import ch.sebastianhaeni.thermotrains.internals.geometry.BoundingBox;
 import ch.sebastianhaeni.thermotrains.internals.geometry.Line;
+import ch.sebastianhaeni.thermotrains.metrics.VisionEvent;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
 import ch.sebastianhaeni.thermotrains.util.MathUtil;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
+import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFiles;
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
 import static ch.sebastianhaeni.thermotrains.util.MatUtil.crop;
 import static org.opencv.core.Core.MinMaxLocResult;
 import static org.opencv.core.Core.absdiff;
 import static org.opencv.core.Core.minMaxLoc;
 import static org.opencv.core.Core.split;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgproc.Imgproc.COLOR_BGR2HSV;
 import static org.opencv.imgproc.Imgproc.GaussianBlur;
 import static org.opencv.imgproc.Imgproc.HoughLinesP;
@@ -54,29 +55,25 @@ public final class Rectify {
    * Find the train contour and rectify it.
    */
   public static void transform(@Nonnull String inputFolder, @Nonnull String outputFolder) {
-    emptyFolder(outputFolder);
-
-    List<Path> files = getFiles(inputFolder, "**.jpg");
-
-    List<BoundingBox> polygons = files.stream()
-      .map(file -> imread(file.toString()))
-      .map(Rectify::findBoundingBox)
-      .filter(Optional::isPresent)
-      .map(Optional::get)
-      .collect(Collectors.toList());
-
-    BoundingBox median = getMedianBox(polygons);
-    BoundingBox rectangle = rectifyBox(median);
-    Mat perspectiveTransform = getPerspectiveTransform(median.getMat(), rectangle.getMat());
-
-    for (int i = 0; i < files.size(); i++) {
-      Mat img = imread(files.get(i).toString());
+    FrameStage.runOnFolder(stage(), inputFolder, outputFolder);
+  }
 
-      // apply matrix
-      warpPerspective(img, img, perspectiveTransform, new Size(img.width(), img.height()));
+  /**
+   * Creates the stage rectifying every frame with the perspective transform of the median train contour.
+   */
+  @Nonnull
+  public static FrameStage stage() {
+    return new RectifyStage(0);
+  }
 
-      saveMat(outputFolder, img, i);
-    }
+  /**
+   * Creates the stage rectifying every frame with the perspective transform of the median train contour in the first
+   * frames it is found in. Once it's found in the warmup frames, the transform is fixed and every further frame is
+   * rectified right away. Used when the frames come in live and we can't wait for the last one.
+   */
+  @Nonnull
+  public static FrameStage stage(int warmup) {
+    return new RectifyStage(warmup);
   }
 
   /**
@@ -84,23 +81,31 @@ public final class Rectify {
    * and return the bounding box of the two lines.
    */
   @Nonnull
-  private static Optional<BoundingBox> findBoundingBox(@Nonnull Mat img) {
-    Mat w = img.clone();
+  static Optional<BoundingBox> findBoundingBox(@Nonnull Mat img) {
+    try (MatScope scope = new MatScope()) {
+      return findBoundingBox(img, scope);
+    }
+  }
+
+  @Nonnull
+  private static Optional<BoundingBox> findBoundingBox(@Nonnull Mat img, @Nonnull MatScope scope) {
+    Mat w = scope.acquire(img.size(), img.type());
 
     // give it a good blur
-    GaussianBlur(w, w, new Size(0, 0), 4);
+    GaussianBlur(img, w, new Size(0, 0), 4);
 
     // get value from HSV
     cvtColor(w, w, COLOR_BGR2HSV);
     List<Mat> channels = new ArrayList<>();
     split(w, channels);
+    scope.trackAll(channels);
     Mat value = channels.get(2);
 
     int fullHeight = value.height();
     int height = fullHeight / 3;
 
-    Mat upperPart = crop(value, 0, 0, fullHeight - height, 0);
-    Mat lowerPart = crop(value, fullHeight - height, 0, 0, 0);
+    Mat upperPart = scope.track(crop(value, 0, 0, fullHeight - height, 0));
+    Mat lowerPart = scope.track(crop(value, fullHeight - height, 0, 0, 0));
 
     Optional<Line> line1 = getLine(upperPart)
       .map(line -> line.expand(0, img.width(), 0, fullHeight));
@@ -120,10 +125,20 @@ public final class Rectify {
    * Gets the strongest line based on y frequency changes.
    */
   @Nonnull
-  private static Optional<Line> getLine(@Nonnull Mat src) {
-    Mat lines = findMaxYFrequency(src);
+  static Optional<Line> getLine(@Nonnull Mat src) {
+    try (MatScope scope = new MatScope()) {
+      return getLine(src, scope);
+    }
+  }
+
+  @Nonnull
+  private static Optional<Line> getLine(@Nonnull Mat src, @Nonnull MatScope scope) {
+    Mat frequencies = scope.track(findMaxYFrequency(src));
+    Mat lines = scope.acquire();
 
-    HoughLinesP(lines, lines, 1.0, Math.PI / 180, LINE_THRESHOLD, MIN_LINE_LENGTH, MAX_LINE_GAP);
+    VisionEvent event = VisionEvent.start("HoughLinesP", frequencies);
+    HoughLinesP(frequencies, lines, 1.0, Math.PI / 180, LINE_THRESHOLD, MIN_LINE_LENGTH, MAX_LINE_GAP);
+    event.commit();
 
     if (lines.rows() == 0) {
       return Optional.empty();
@@ -140,32 +155,54 @@ public final class Rectify {
    * Searches for the maximum frequency in y direction in every column and marks it white.
    */
   @Nonnull
-  private static Mat findMaxYFrequency(@Nonnull Mat src) {
+  static Mat findMaxYFrequency(@Nonnull Mat src) {
+    try (MatScope scope = new MatScope()) {
+      return scope.keep(findMaxYFrequency(src, scope));
+    }
+  }
 
-    Mat w = new Mat();
-    resize(src, w, new Size(src.width() / FREQUENCY_RESOLUTION, src.height() / FREQUENCY_RESOLUTION));
+  @Nonnull
+  private static Mat findMaxYFrequency(@Nonnull Mat src, @Nonnull MatScope scope) {
+    Size size = new Size(src.width() / FREQUENCY_RESOLUTION, src.height() / FREQUENCY_RESOLUTION);
+    Mat w = scope.acquire(size, CvType.CV_8UC1);
+    resize(src, w, size);
 
     Size diffSize = new Size(w.width(), w.height() - 1);
 
-    Mat top = new Mat(diffSize, CvType.CV_8UC1);
-    Mat bottom = new Mat(diffSize, CvType.CV_8UC1);
+    Mat top = scope.acquire(diffSize, CvType.CV_8UC1);
+    Mat bottom = scope.acquire(diffSize, CvType.CV_8UC1);
 
-    w.rowRange(1, w.height() - 1).copyTo(top);
-    w.rowRange(2, w.height()).copyTo(bottom);
+    scope.track(w.rowRange(1, w.height() - 1)).copyTo(top);
+    scope.track(w.rowRange(2, w.height())).copyTo(bottom);
 
-    Mat diff = new Mat();
+    Mat diff = scope.acquire(diffSize, CvType.CV_8UC1);
     absdiff(top, bottom, diff);
 
-    Mat output = new Mat(diffSize, CvType.CV_8UC1);
+    Mat output = scope.acquire(diffSize, CvType.CV_8UC1);
+    output.setTo(new Scalar(0));
 
     for (int x = 0; x < output.width(); x++) {
-      MinMaxLocResult max = minMaxLoc(diff.col(x));
+      Mat column = diff.col(x);
+      MinMaxLocResult max = minMaxLoc(column);
+      column.release();
+
       output.put((int) max.maxLoc.y, x, 255);
     }
 
     return output;
   }
 
+  /**
+   * Creates the perspective transform from the median train contour to its bounding rectangle.
+   */
+  @Nonnull
+  static Mat getTransform(@Nonnull List<BoundingBox> polygons) {
+    BoundingBox median = getMedianBox(polygons);
+    BoundingBox rectangle = rectifyBox(median);
+
+    return getPerspectiveTransform(median.getMat(), rectangle.getMat());
+  }
+
   @Nonnull
   private static BoundingBox getMedianBox(@Nonnull List<BoundingBox> polygons) {
 
@@ -215,4 +252,63 @@ public final class Rectify {
       new Point(polygon.getBottomLeft().x, bottom)
     );
   }
+
+  private static final class RectifyStage implements FrameStage {
+    private final List<Frame> frames = new ArrayList<>();
+    private final List<BoundingBox> polygons = new ArrayList<>();
+    private final int warmup;
+    @Nullable
+    private Mat perspectiveTransform;
+
+    RectifyStage(int warmup) {
+      this.warmup = warmup;
+    }
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      if (perspectiveTransform != null) {
+        emit(frame, downstream);
+        return;
+      }
+
+      findBoundingBox(frame.getMat()).ifPresent(polygons::add);
+      frames.add(frame);
+
+      if (warmup > 0 && polygons.size() >= warmup) {
+        settle(downstream);
+      }
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      if (perspectiveTransform == null) {
+        if (polygons.isEmpty()) {
+          throw new IllegalStateException("Could not find the train contour on any frame");
+        }
+
+        settle(downstream);
+      }
+
+      perspectiveTransform.release();
+    }
+
+    /**
+     * Fixes the perspective transform and rectifies the frames held back so far.
+     */
+    private void settle(@Nonnull Consumer<Frame> downstream) {
+      perspectiveTransform = getTransform(polygons);
+
+      frames.forEach(frame -> emit(frame, downstream));
+      frames.clear();
+    }
+
+    private void emit(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      Mat img = frame.getMat();
+
+      // apply matrix
+      warpPerspective(img, img, perspectiveTransform, new Size(img.width(), img.height()));
+
+      downstream.accept(frame);
+    }
+  }
 }
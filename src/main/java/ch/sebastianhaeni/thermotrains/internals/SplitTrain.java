@@ -1,15 +1,25 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.math.NumberUtils;
 import org.opencv.core.*;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.*;
+import static org.opencv.core.Core.hconcat;
 import static org.opencv.core.Core.inRange;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgproc.Imgproc.*;
 
 public final class SplitTrain {
@@ -26,42 +36,49 @@ public final class SplitTrain {
     emptyFolder(outputFolder);
 
     List<Path> files = getFiles(inputFolder, "**result.jpg");
-    Mat img = imread(files.get(0).toString());
+    Mat img = readMat(files.get(0));
 
-    Mat hsv = new Mat();
-    cvtColor(img, hsv, COLOR_BGR2HSV);
-
-    int kernelSize = 3 * 2;
-    blur(hsv, hsv, new Size(kernelSize, kernelSize));
-
-    Scalar lower = new Scalar(0, 0, 0);
-    Scalar upper = new Scalar(255, 255, 38);
-
-    Mat dst = new Mat();
-    inRange(hsv, lower, upper, dst);
-
-    // dilate the threshold image to fill in holes
-    Mat dilationElement = getStructuringElement(MORPH_ELLIPSE,
-      new Size(2 * DILATION_SIZE + 1, 2 * DILATION_SIZE + 1),
-      new Point(DILATION_SIZE, DILATION_SIZE));
-
-    erode(dst, dst, dilationElement);
+    cut(img, null, car -> saveMat(outputFolder, car.getMat(), car.getIndex()));
+  }
 
-    Mat cropped = crop(dst);
+  /**
+   * Creates the stage cutting the stitched train into its cars.
+   */
+  @Nonnull
+  public static FrameStage stage() {
+    return (frame, downstream) -> cut(frame.getMat(), frame.getDirection(), downstream);
+  }
 
-    int[] hist = new int[cropped.cols()];
+  /**
+   * Creates the stage cutting the train into its cars while it passes by. It takes the segments of
+   * {@link TrainStitcher#liveStage()} and emits every car as soon as the gap behind it is found.
+   * <p>
+   * Unlike {@link #stage()}, a gap is found with the darkest column seen so far rather than the darkest column of the
+   * whole train, so the first cars may be cut slightly differently.
+   */
+  @Nonnull
+  public static FrameStage liveStage() {
+    return new LiveSplitStage();
+  }
 
-    for (int i = 0; i < cropped.cols(); i++) {
+  /**
+   * Cuts the train into its cars. They are numbered from the front of the train, which is on the right of the image if
+   * the train travels in reverse. Like in {@link LiveSplitStage}, the columns are searched for gaps in the order the
+   * train passes by, so a partial car is left over at its rear in both directions.
+   */
+  private static void cut(
+    @Nonnull Mat img,
+    @Nullable Direction direction,
+    @Nonnull Consumer<Frame> downstream) {
 
-      int withinRange = 0;
+    int[] hist;
 
-      for (int j = 0; j < cropped.rows(); j++) {
-        if (cropped.get(j, i)[0] > 0) {
-          withinRange++;
-        }
-      }
+    try (MatScope scope = new MatScope()) {
+      hist = findDarkColumns(img, scope);
+    }
 
-      hist[i] = withinRange;
+    if (direction == Direction.REVERSE) {
+      ArrayUtils.reverse(hist);
     }
 
     int max = NumberUtils.max(hist);
@@ -85,7 +102,7 @@ public final class SplitTrain {
     // last pixel must be peak, to crop correctly
     hist[hist.length - 1] = 1;
     int prev = 0;
-    int i = 0;
+    int carCounter = 0;
     for (int x = 0; x < hist.length; x++) {
       if (hist[x] == 0.0) {
         continue;
@@ -96,10 +113,75 @@ public final class SplitTrain {
         continue;
       }
 
-      Mat car = img.colRange(prev, x);
+      downstream.accept(new Frame(++carCounter, passRange(img, prev, x, direction), direction));
       prev = x;
-      saveMat(outputFolder, car, ++i);
     }
+
+    // the cars keep the image alive
+    img.release();
+  }
+
+  /**
+   * Gets the columns between start and end counted in the order the train passes by, i.e. from the right of the image
+   * if it travels in reverse.
+   */
+  @Nonnull
+  private static Mat passRange(@Nonnull Mat img, int start, int end, @Nullable Direction direction) {
+    if (direction == Direction.REVERSE) {
+      return img.colRange(img.cols() - end, img.cols() - start);
+    }
+
+    return img.colRange(start, end);
+  }
+
+  /**
+   * Counts the dark pixels in every column of the upper 2/3 of the image.
+   */
+  @Nonnull
+  private static int[] findDarkColumns(@Nonnull Mat img, @Nonnull MatScope scope) {
+    Mat hsv = scope.acquire(img.size(), CvType.CV_8UC3);
+    cvtColor(img, hsv, COLOR_BGR2HSV);
+
+    int kernelSize = 3 * 2;
+    blur(hsv, hsv, new Size(kernelSize, kernelSize));
+
+    Scalar lower = new Scalar(0, 0, 0);
+    Scalar upper = new Scalar(255, 255, 38);
+
+    Mat dst = scope.acquire(img.size(), CvType.CV_8UC1);
+    inRange(hsv, lower, upper, dst);
+
+    // dilate the threshold image to fill in holes
+    Mat dilationElement = scope.track(getStructuringElement(MORPH_ELLIPSE,
+      new Size(2 * DILATION_SIZE + 1, 2 * DILATION_SIZE + 1),
+      new Point(DILATION_SIZE, DILATION_SIZE)));
+
+    erode(dst, dst, dilationElement);
+
+    return columnHistogram(scope.track(crop(dst)));
+  }
+
+  /**
+   * Counts the pixels set in every column of the mask.
+   */
+  @Nonnull
+  static int[] columnHistogram(@Nonnull Mat mask) {
+    int[] hist = new int[mask.cols()];
+
+    for (int i = 0; i < mask.cols(); i++) {
+
+      int withinRange = 0;
+
+      for (int j = 0; j < mask.rows(); j++) {
+        if (mask.get(j, i)[0] > 0) {
+          withinRange++;
+        }
+      }
+
+      hist[i] = withinRange;
+    }
+
+    return hist;
   }
 
   /**
@@ -111,4 +193,130 @@ public final class SplitTrain {
 
     return new Mat(mat, roi);
   }
+
+  /**
+   * Keeps the segments of the train not yet emitted as part of a car. The columns are counted in the order the train
+   * passes by, i.e. from its front. If it travels in reverse, that's from right to left in the image.
+   */
+  private static final class LiveSplitStage implements FrameStage {
+    private final List<Mat> segments = new ArrayList<>();
+    private final List<Integer> segmentStarts = new ArrayList<>();
+    private int[] hist = new int[0];
+    private int length;
+    private int max;
+    private int lastPeak = -1;
+    private int carStart;
+    private int carCounter;
+    @Nullable
+    private Direction direction;
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      direction = frame.getDirection();
+      Mat segment = frame.getMat();
+
+      int[] segmentHist;
+      try (MatScope scope = new MatScope()) {
+        segmentHist = findDarkColumns(segment, scope);
+      }
+
+      if (direction == Direction.REVERSE) {
+        ArrayUtils.reverse(segmentHist);
+      }
+
+      segments.add(segment);
+      segmentStarts.add(length);
+
+      if (length + segmentHist.length > hist.length) {
+        hist = Arrays.copyOf(hist, Math.max(2 * hist.length, length + segmentHist.length));
+      }
+
+      System.arraycopy(segmentHist, 0, hist, length, segmentHist.length);
+      int start = length;
+      length += segmentHist.length;
+      max = Math.max(max, NumberUtils.max(segmentHist));
+
+      for (int x = start; x < length; x++) {
+        if (hist[x] < max * PEAK_THRESHOLD) {
+          continue;
+        }
+
+        // a peak right after the last one replaces it, as the plateau is flattened in cut
+        if (lastPeak >= 0 && lastPeak + MIN_CAR_LENGTH_IN_PX <= x) {
+          cutAt(lastPeak, downstream);
+        }
+
+        lastPeak = x;
+      }
+
+      // no peak can replace the last one anymore
+      if (lastPeak >= 0 && lastPeak + MIN_CAR_LENGTH_IN_PX <= length) {
+        cutAt(lastPeak, downstream);
+        lastPeak = -1;
+      }
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      if (lastPeak >= 0) {
+        cutAt(lastPeak, downstream);
+      }
+
+      // last pixel must be peak, to crop correctly
+      if (length > 0) {
+        cutAt(length - 1, downstream);
+      }
+
+      segments.forEach(Mat::release);
+      segments.clear();
+    }
+
+    /**
+     * Cuts at the gap, emitting the car before it if it is long enough.
+     */
+    private void cutAt(int gap, @Nonnull Consumer<Frame> downstream) {
+      if (gap - carStart >= MIN_CAR_LENGTH_IN_PX) {
+        downstream.accept(new Frame(++carCounter, assemble(carStart, gap), direction));
+      }
+
+      carStart = gap;
+
+      // release the segments before the gap
+      while (segments.size() > 1 && segmentStarts.get(1) <= gap) {
+        segments.remove(0).release();
+        segmentStarts.remove(0);
+      }
+    }
+
+    /**
+     * Puts the columns of the segments between start and end together to one image.
+     */
+    @Nonnull
+    private Mat assemble(int start, int end) {
+      List<Mat> parts = new ArrayList<>();
+
+      for (int i = 0; i < segments.size(); i++) {
+        Mat segment = segments.get(i);
+        int segmentStart = segmentStarts.get(i);
+        int from = Math.max(start, segmentStart) - segmentStart;
+        int to = Math.min(end, segmentStart + segment.cols()) - segmentStart;
+
+        if (from >= to) {
+          continue;
+        }
+
+        parts.add(passRange(segment, from, to, direction));
+      }
+
+      if (direction == Direction.REVERSE) {
+        Collections.reverse(parts);
+      }
+
+      Mat car = new Mat();
+      hconcat(parts, car);
+      parts.forEach(Mat::release);
+
+      return car;
+    }
+  }
 }
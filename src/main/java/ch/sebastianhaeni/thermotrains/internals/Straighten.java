@@ -1,52 +1,101 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
-import ch.sebastianhaeni.thermotrains.util.FileUtil;
+import ch.sebastianhaeni.thermotrains.metrics.VisionEvent;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import ch.sebastianhaeni.thermotrains.util.MathUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
 import javax.annotation.Nonnull;
-import java.nio.file.Path;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.OptionalDouble;
+import java.util.function.Consumer;
 import java.util.stream.DoubleStream;
 
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgproc.Imgproc.*;
 
 public final class Straighten {
 
+  private static final Logger LOG = LogManager.getLogger(Straighten.class);
   private static final int TRACK_THRESH = 40;
   private static final int THRESHOLD_1 = 10;
   private static final int THRESHOLD_2 = 70;
   private static final int HOUGH_THRESHOLD = 400;
   private static final double MIN_LINE_LENGTH = 300.0;
   private static final double MAX_LINE_GAP = 20.0;
+  static final int ANGLE_SAMPLES = 5;
+  static final int MAX_ANGLE_FRAMES = 50;
 
   private Straighten() {
     // nop
   }
 
   public static void straighten(@Nonnull String inputFolder, @Nonnull String outputFolder) {
-    emptyFolder(outputFolder);
-
-    int i = 0;
-    List<Path> inputFiles = FileUtil.getFiles(inputFolder, "**.jpg");
+    FrameStage.runOnFolder(sampledStage(), inputFolder, outputFolder);
+  }
 
-    for (Path inputFile : inputFiles) {
-      Mat img = imread(inputFile.toString());
+  /**
+   * Creates the stage rotating every frame so the train tracks are horizontal.
+   */
+  @Nonnull
+  public static FrameStage stage() {
+    return (frame, downstream) -> {
       Mat dst = new Mat();
-      straighten(img, dst);
+      straighten(frame.getMat(), dst);
+      frame.getMat().release();
+
+      downstream.accept(frame.withMat(dst));
+    };
+  }
+
+  /**
+   * Creates the stage rotating every frame by the median angle of the train tracks in the first
+   * {@link #ANGLE_SAMPLES} frames they are found in. The camera doesn't move during a recording, so the tracks are only
+   * searched in the sample frames and every further frame is rotated right away. Frames without tracks don't count as
+   * samples. If the tracks aren't found in {@link #MAX_ANGLE_FRAMES} frames, the median of the angles found so far is
+   * used.
+   */
+  @Nonnull
+  public static FrameStage sampledStage() {
+    return new SampledStage(ANGLE_SAMPLES);
+  }
+
+  static void straighten(@Nonnull Mat source, @Nonnull Mat destination) {
+    try (MatScope scope = new MatScope()) {
+      straighten(source, destination, scope);
+    }
+  }
 
-      // save to disk
-      saveMat(outputFolder, dst, ++i);
+  private static void straighten(@Nonnull Mat source, @Nonnull Mat destination, @Nonnull MatScope scope) {
+    double angle = findAngle(source, scope).orElse(0.0);
+    Mat rotationMatrix = scope.track(getRotationMatrix(source.size(), angle));
+
+    // rotate
+    warpAffine(source, destination, rotationMatrix, source.size());
+  }
+
+  /**
+   * Finds the angle of the train tracks in degrees, or nothing if there are no tracks on the image.
+   */
+  @Nonnull
+  static OptionalDouble findAngle(@Nonnull Mat source) {
+    try (MatScope scope = new MatScope()) {
+      return findAngle(source, scope);
     }
   }
 
-  private static void straighten(@Nonnull Mat source, @Nonnull Mat destination) {
-    Mat srcGray = new Mat();
+  @Nonnull
+  private static OptionalDouble findAngle(@Nonnull Mat source, @Nonnull MatScope scope) {
+    Mat srcGray = scope.acquire(source.size(), CvType.CV_8UC1);
 
     // convert to gray scale
     cvtColor(source, srcGray, Imgproc.COLOR_BGR2GRAY);
@@ -55,7 +104,7 @@ public final class Straighten {
     maskTrainTracks(srcGray);
 
     // find lines using hough transform
-    Mat lines = findLines(srcGray);
+    Mat lines = findLines(srcGray, scope);
 
     // calculate angle by averaging line angles
     double[] angles = new double[lines.rows()];
@@ -65,13 +114,20 @@ public final class Straighten {
       angles[i] = calculateAngle(val[0], val[1], val[2], val[3]);
     }
 
-    double angle = DoubleStream.of(angles).average().orElse(0.0);
+    // average across 0, so tracks slightly off either way don't average to 180
+    OptionalDouble average = DoubleStream.of(angles).map(MathUtil::signedAngle).average();
 
-    Point center = new Point(source.cols() / 2, source.rows() / 2);
-    Mat rotationMatrix = getRotationMatrix2D(center, -angle, 1.0);
+    return average.isPresent() ? OptionalDouble.of(MathUtil.unsignedAngle(average.getAsDouble())) : average;
+  }
 
-    // rotate
-    warpAffine(source, destination, rotationMatrix, source.size());
+  /**
+   * Creates the affine matrix rotating an image of the size by the angle of the train tracks around its center.
+   */
+  @Nonnull
+  static Mat getRotationMatrix(@Nonnull Size size, double angle) {
+    Point center = new Point((int) size.width / 2, (int) size.height / 2);
+
+    return getRotationMatrix2D(center, -angle, 1.0);
   }
 
   /**
@@ -85,14 +141,16 @@ public final class Straighten {
    * Finds lines with hough in the image.
    */
   @Nonnull
-  private static Mat findLines(@Nonnull Mat srcGray) {
-    Mat edges = new Mat();
-    Mat lines = new Mat();
+  private static Mat findLines(@Nonnull Mat srcGray, @Nonnull MatScope scope) {
+    Mat edges = scope.acquire(srcGray.size(), CvType.CV_8UC1);
+    Mat lines = scope.acquire();
     int kernelSize = 3 * 2;
 
     blur(srcGray, srcGray, new Size(kernelSize, kernelSize));
     Canny(srcGray, edges, THRESHOLD_1, THRESHOLD_2);
+    VisionEvent event = VisionEvent.start("HoughLinesP", edges);
     HoughLinesP(edges, lines, 1.0, Math.PI / 180, HOUGH_THRESHOLD, MIN_LINE_LENGTH, MAX_LINE_GAP);
+    event.commit();
 
     return lines;
   }
@@ -102,9 +160,88 @@ public final class Straighten {
    */
   private static double calculateAngle(double x1, double y1, double x2, double y2) {
     double angle = Math.toDegrees(Math.atan2(x2 - x1, y2 - y1)) - 90;
+
     // Keep angle between 0 and 360
-    angle = angle + Math.ceil(-angle / 360) * 360;
+    return MathUtil.unsignedAngle(angle);
+  }
+
+  /**
+   * Gets the median of the angles found in the sample frames, 0 if the tracks weren't found in any of them.
+   */
+  static double getMedianAngle(@Nonnull List<Double> angles, int frames) {
+    if (angles.isEmpty()) {
+      LOG.warn("Could not find the tracks in {} frames, not straightening", frames);
+      return 0.0;
+    }
+
+    double angle = MathUtil.medianAngle(angles.toArray(new Double[0]));
+    LOG.info("Straightening by {} degrees, the median of {} of {} frames", angle, angles.size(), frames);
 
     return angle;
   }
+
+  private static final class SampledStage implements FrameStage {
+    private final List<Frame> frames = new ArrayList<>();
+    private final List<Double> angles = new ArrayList<>();
+    private final int samples;
+    @Nullable
+    private Mat rotationMatrix;
+
+    SampledStage(int samples) {
+      this.samples = samples;
+    }
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      if (rotationMatrix != null) {
+        emit(frame, downstream);
+        return;
+      }
+
+      findAngle(frame.getMat()).ifPresent(angles::add);
+      frames.add(frame);
+
+      if (angles.size() >= samples || frames.size() >= MAX_ANGLE_FRAMES) {
+        settle(downstream);
+      }
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      if (rotationMatrix == null) {
+        if (frames.isEmpty()) {
+          return;
+        }
+
+        settle(downstream);
+      }
+
+      rotationMatrix.release();
+    }
+
+    /**
+     * Fixes the median angle and rotates the frames held back so far.
+     */
+    private void settle(@Nonnull Consumer<Frame> downstream) {
+      double angle = getMedianAngle(angles, frames.size());
+
+      rotationMatrix = getRotationMatrix(frames.get(0).getMat().size(), angle);
+
+      frames.forEach(frame -> emit(frame, downstream));
+      frames.clear();
+    }
+
+    private void emit(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      Mat source = frame.getMat();
+      Mat dst = new Mat();
+
+      VisionEvent event = VisionEvent.start("warpAffine", source);
+      warpAffine(source, dst, rotationMatrix, source.size());
+      event.commit();
+
+      source.release();
+
+      downstream.accept(frame.withMat(dst));
+    }
+  }
 }
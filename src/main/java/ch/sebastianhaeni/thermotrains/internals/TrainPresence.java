@@ -0,0 +1,243 @@
+package ch.sebastianhaeni.thermotrains.internals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.metrics.CodecEvent;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+import org.opencv.core.Range;
+import org.opencv.videoio.VideoCapture;
+import org.opencv.videoio.Videoio;
+
+import static ch.sebastianhaeni.thermotrains.internals.DirectionEstimator.shrink;
+import static org.opencv.core.Core.absdiff;
+import static org.opencv.core.Core.countNonZero;
+import static org.opencv.imgproc.Imgproc.THRESH_BINARY;
+import static org.opencv.imgproc.Imgproc.threshold;
+
+/**
+ * Finds the part of a video the train is in. Our recordings start and end with empty track, so the first and the last
+ * frame serve as background. A frame shows the train if it differs from both of them in enough pixels.
+ * <p>
+ * The timeline is probed coarsely first, then the edges of the train are narrowed down with a binary search between
+ * the last empty and the first probe with the train in it. Only the probed frames are decoded. The probes are at most
+ * {@link #MAX_PROBE_SECONDS} apart, which is shorter than any pass we expect.
+ */
+public final class TrainPresence {
+
+  private static final Logger LOG = LogManager.getLogger(TrainPresence.class);
+  private static final int COARSE_PROBES = 32;
+  private static final double MAX_PROBE_SECONDS = 1.0;
+  private static final double DEFAULT_FPS = 30;
+  private static final int PIXEL_THRESHOLD = 25;
+  private static final double PRESENCE_THRESHOLD = .05;
+  private static final int LAST_FRAME_ATTEMPTS = 10;
+
+  /**
+   * Frames kept before and after the train, so it can be seen entering and leaving.
+   */
+  private static final int MARGIN = 15;
+
+  private TrainPresence() {
+    // nop
+  }
+
+  /**
+   * Finds the range of frames with the train in it. If no frame shows the train, e.g. because the video doesn't start
+   * or end with empty track, the whole video is returned.
+   */
+  @Nonnull
+  public static Range find(@Nonnull String inputVideoFilename) {
+    VideoCapture capture = ExtractFrames.open(inputVideoFilename);
+    int frameCount = (int) capture.get(Videoio.CAP_PROP_FRAME_COUNT);
+    double fps = capture.get(Videoio.CAP_PROP_FPS);
+
+    try (Probe probe = new Probe(capture, inputVideoFilename, frameCount)) {
+      Range found = search(frameCount, getStep(frameCount, fps), probe::isPresent);
+
+      if (found == null) {
+        LOG.warn("Could not find a train in {}, using all {} frames", inputVideoFilename, frameCount);
+        return new Range(0, frameCount);
+      }
+
+      Range range = new Range(Math.max(0, found.start - MARGIN), Math.min(frameCount, found.end + MARGIN));
+      LOG.info("The train is in frames {} to {} of {}", range.start, range.end, frameCount);
+
+      return range;
+    }
+  }
+
+  /**
+   * Gets the distance of the coarse probes. There are at least {@link #COARSE_PROBES}, but they are never further apart
+   * than {@link #MAX_PROBE_SECONDS}, so a short pass in a long video isn't missed.
+   */
+  static int getStep(int frameCount, double fps) {
+    double framesPerSecond = fps > 0 ? fps : DEFAULT_FPS;
+    int maxStep = (int) (framesPerSecond * MAX_PROBE_SECONDS);
+
+    return Math.max(1, Math.min(frameCount / COARSE_PROBES, maxStep));
+  }
+
+  /**
+   * Searches the frames the train is in. Every step-th frame is probed first, then the edges of the train are narrowed
+   * down with a binary search between the last probe without and the first one with the train.
+   *
+   * @return the range of frames with the train, or {@code null} if no probe shows it
+   */
+  @Nullable
+  public static Range search(int frameCount, int step, @Nonnull IntPredicate isPresent) {
+    int firstPresent = -1;
+    int lastPresent = -1;
+
+    for (int position = 0; position < frameCount; position += step) {
+      if (isPresent.test(position)) {
+        if (firstPresent < 0) {
+          firstPresent = position;
+        }
+
+        lastPresent = position;
+      }
+    }
+
+    if (firstPresent < 0) {
+      return null;
+    }
+
+    // the first probe with the train and the empty one before
+    int low = firstPresent - step;
+    int high = firstPresent;
+
+    while (low >= 0 && high - low > 1) {
+      int middle = (low + high) / 2;
+
+      if (isPresent.test(middle)) {
+        high = middle;
+      } else {
+        low = middle;
+      }
+    }
+
+    int start = low < 0 ? 0 : high;
+
+    // the last probe with the train and the empty one after
+    low = lastPresent;
+    high = Math.min(lastPresent + step, frameCount);
+
+    while (high - low > 1) {
+      int middle = (low + high) / 2;
+
+      if (isPresent.test(middle)) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+
+    return new Range(start, low + 1);
+  }
+
+  /**
+   * Decodes single frames and compares them to the background. The results are remembered, since the binary search
+   * can ask for the same frame again.
+   */
+  private static final class Probe implements AutoCloseable {
+    private final VideoCapture capture;
+    private final String inputVideoFilename;
+    private final Map<Integer, Boolean> results = new HashMap<>();
+    @Nullable
+    private final Mat first;
+    @Nullable
+    private final Mat last;
+
+    Probe(@Nonnull VideoCapture capture, @Nonnull String inputVideoFilename, int frameCount) {
+      this.capture = capture;
+      this.inputVideoFilename = inputVideoFilename;
+
+      first = read(0);
+
+      // the frame count is only an estimate for some containers
+      Mat lastFrame = null;
+      for (int i = 1; i <= LAST_FRAME_ATTEMPTS && lastFrame == null && frameCount - i > 0; i++) {
+        lastFrame = read(frameCount - i);
+      }
+      last = lastFrame;
+
+      if (first == null && last == null) {
+        capture.release();
+        throw new IllegalStateException("Cannot read " + inputVideoFilename);
+      }
+    }
+
+    boolean isPresent(int position) {
+      return results.computeIfAbsent(position, this::compare);
+    }
+
+    private boolean compare(int position) {
+      Mat frame = read(position);
+
+      if (frame == null) {
+        LOG.warn("Cannot read frame {}", position);
+        return false;
+      }
+
+      try {
+        return differs(frame, first) && differs(frame, last);
+      } finally {
+        frame.release();
+      }
+    }
+
+    /**
+     * Reads the frame at the position shrunk to a grayscale image.
+     */
+    @Nullable
+    private Mat read(int position) {
+      try (MatScope scope = new MatScope()) {
+        Mat frame = scope.acquire();
+
+        CodecEvent event = CodecEvent.start(CodecEvent.DECODE, inputVideoFilename);
+        long start = System.nanoTime();
+        boolean success = capture.set(Videoio.CAP_PROP_POS_FRAMES, position) && capture.read(frame);
+        Metrics.recordCodec(System.nanoTime() - start, 0, 0);
+        event.commit();
+
+        return success ? shrink(frame) : null;
+      }
+    }
+
+    @Override
+    public void close() {
+      capture.release();
+
+      if (first != null) {
+        first.release();
+      }
+
+      if (last != null) {
+        last.release();
+      }
+    }
+
+    private static boolean differs(@Nonnull Mat frame, @Nullable Mat background) {
+      if (background == null) {
+        return true;
+      }
+
+      try (MatScope scope = new MatScope()) {
+        Mat diff = scope.acquire();
+        absdiff(frame, background, diff);
+        threshold(diff, diff, PIXEL_THRESHOLD, 1, THRESH_BINARY);
+
+        return countNonZero(diff) > diff.total() * PRESENCE_THRESHOLD;
+      }
+    }
+  }
+}
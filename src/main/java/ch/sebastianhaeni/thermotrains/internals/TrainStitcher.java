@@ -2,31 +2,39 @@ package ch.sebastianhaeni.thermotrains.internals;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
+import ch.sebastianhaeni.thermotrains.metrics.VisionEvent;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.util.Direction;
 import ch.sebastianhaeni.thermotrains.util.FileUtil;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
 import ch.sebastianhaeni.thermotrains.util.MatUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
 import org.opencv.core.Point;
-import org.opencv.core.Scalar;
 
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.readMat;
 import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
 import static org.opencv.core.Core.NORM_MINMAX;
 import static org.opencv.core.Core.hconcat;
 import static org.opencv.core.Core.minMaxLoc;
 import static org.opencv.core.Core.normalize;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgproc.Imgproc.TM_SQDIFF_NORMED;
 import static org.opencv.imgproc.Imgproc.matchTemplate;
-import static org.opencv.imgproc.Imgproc.rectangle;
 
 public final class TrainStitcher {
 
+  private static final Logger LOG = LogManager.getLogger(TrainStitcher.class);
   private static final int VERTICAL_CROP = 100;
 
   private TrainStitcher() {
@@ -36,18 +44,52 @@ public final class TrainStitcher {
   public static void stitchTrain(@Nonnull String inputFolder, @Nonnull String outputFolder) {
     emptyFolder(outputFolder);
 
+    FrameStage stage = stage();
     List<Path> inputFiles = FileUtil.getFiles(inputFolder, "**.jpg");
-    List<Offset> offsets = new ArrayList<>();
 
-    for (int i = 0; i < inputFiles.size() - 1; i++) {
+    for (int i = 0; i < inputFiles.size(); i++) {
+      stage.process(new Frame(i, readMat(inputFiles.get(i))), frame -> {
+        // the stitcher only emits the result when finishing
+      });
+    }
 
-      Mat imgScene = imread(inputFiles.get(i).toString());
-      Mat imgObject = createTemplate(imread(inputFiles.get(i + 1).toString()));
+    stage.finish(result -> saveMat(outputFolder, result.getMat(), "result"));
+  }
+
+  /**
+   * Creates the stage stitching all frames together to a single image of the whole train. Every frame is matched
+   * against its predecessor as soon as it arrives, the result is emitted when finishing.
+   */
+  @Nonnull
+  public static FrameStage stage() {
+    return new StitchStage(false);
+  }
+
+  /**
+   * Creates the stage stitching the frames live. Instead of the whole train, every segment of the train is emitted as
+   * soon as the next frame is matched against it. The segments are emitted in the order the train passes by, so if it
+   * travels in reverse, every segment belongs to the left of the one before. {@link SplitTrain#liveStage()} puts them
+   * together again.
+   */
+  @Nonnull
+  public static FrameStage liveStage() {
+    return new StitchStage(true);
+  }
+
+  /**
+   * Finds the offset of the next image in the scene.
+   */
+  @Nonnull
+  static Offset findOffset(@Nonnull Mat imgScene, @Nonnull Mat nextImg) {
+    try (MatScope scope = new MatScope()) {
+      Mat imgObject = scope.track(createTemplate(nextImg));
 
       // Do the Matching and Normalize
-      Mat result = new Mat();
+      Mat result = scope.acquire();
+      VisionEvent event = VisionEvent.start("matchTemplate", imgScene);
       matchTemplate(imgScene, imgObject, result, TM_SQDIFF_NORMED);
-      normalize(result, result, 0, 1, NORM_MINMAX, -1, new Mat());
+      event.commit();
+      normalize(result, result, 0, 1, NORM_MINMAX, -1, scope.acquire());
 
       // Localizing the best match with minMaxLoc
       Core.MinMaxLocResult minMaxLocResult = minMaxLoc(result);
@@ -56,38 +98,8 @@ public final class TrainStitcher {
       // better
       Point matchLoc = minMaxLocResult.minLoc;
 
-      // Show me what you got
-      Point to = new Point(matchLoc.x + imgObject.cols(), matchLoc.y + imgObject.rows());
-      rectangle(imgScene, matchLoc, to, Scalar.all(0), 2, 8, 0);
-
-      Mat out = imgScene.adjustROI(0, 0, imgObject.width(), 0);
-
-      offsets.add(new Offset((int) matchLoc.x, (int) matchLoc.y));
-      saveMat(outputFolder, out, i);
+      return new Offset((int) matchLoc.x, (int) matchLoc.y);
     }
-
-    Mat result = imread(inputFiles.get(0).toString());
-    result = result.colRange(0, offsets.get(0).x);
-
-    for (int i = 1; i <= offsets.size(); i++) {
-
-      Mat right = imread(inputFiles.get(i).toString());
-
-      // cut off at offset
-      int start = getTemplateOffset(right);
-      int end = i < offsets.size() ? offsets.get(i).x : right.width();
-
-      if (start >= end) {
-        continue;
-      }
-
-      right = right.colRange(start, end);
-
-      // concatenate them side by side
-      hconcat(Arrays.asList(result, right), result);
-    }
-
-    saveMat(outputFolder, result, "result");
   }
 
   /**
@@ -103,7 +115,7 @@ public final class TrainStitcher {
     return (mat.width() / 2) - 100;
   }
 
-  private static class Offset {
+  static class Offset {
     int x;
     int y;
 
@@ -112,4 +124,107 @@ public final class TrainStitcher {
       this.y = y;
     }
   }
+
+  /**
+   * Stitches the frames in the order they arrive. A train travelling forward enters the frame on the right, so every
+   * frame adds the part right of the frame before. In reverse the frames are handled mirrored: every frame adds the
+   * part left of the frame before and the segments are concatenated in reverse order. The frames themselves are never
+   * mirrored.
+   * <p>
+   * If the frames don't tell the direction, e.g. when read from disk, it's taken from the offset of the first frames.
+   */
+  private static final class StitchStage implements FrameStage {
+    private final List<Mat> segments = new ArrayList<>();
+    private final boolean live;
+    @Nullable
+    private Mat previous;
+    @Nullable
+    private Direction direction;
+    private int segmentCounter;
+
+    StitchStage(boolean live) {
+      this.live = live;
+    }
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      if (direction == null) {
+        direction = frame.getDirection();
+      }
+
+      if (previous != null) {
+        Offset offset = findOffset(previous, frame.getMat());
+
+        if (direction == null) {
+          direction = offset.x < getTemplateOffset(previous) ? Direction.REVERSE : Direction.FORWARD;
+          LOG.info("The train's direction is {}", direction);
+        }
+
+        addSegment(previous, offset.x, false, downstream);
+
+        // the segment keeps the image alive
+        previous.release();
+      }
+
+      previous = frame.getMat();
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      if (previous == null) {
+        return;
+      }
+
+      addSegment(previous, 0, true, downstream);
+      previous.release();
+
+      if (live) {
+        return;
+      }
+
+      if (direction == Direction.REVERSE) {
+        Collections.reverse(segments);
+      }
+
+      // concatenate them side by side
+      Mat result = new Mat();
+      hconcat(segments, result);
+
+      segments.forEach(Mat::release);
+      segments.clear();
+
+      downstream.accept(new Frame(0, result, direction));
+    }
+
+    /**
+     * Adds the part of the image between the template and the offset the next image was found at. The first image adds
+     * everything up to its edge the train enters at, the last image everything from its template on.
+     */
+    private void addSegment(@Nonnull Mat mat, int offset, boolean last, @Nonnull Consumer<Frame> downstream) {
+      boolean first = live ? segmentCounter == 0 : segments.isEmpty();
+      int margin = getTemplateOffset(mat);
+      int start;
+      int end;
+
+      if (direction == Direction.REVERSE) {
+        int templateWidth = mat.width() - 2 * margin;
+        start = last ? 0 : offset + templateWidth;
+        end = first ? mat.width() : mat.width() - margin;
+      } else {
+        start = first ? 0 : margin;
+        end = last ? mat.width() : offset;
+      }
+
+      if (start >= end) {
+        return;
+      }
+
+      if (live) {
+        downstream.accept(new Frame(++segmentCounter, mat.colRange(start, end), direction));
+        return;
+      }
+
+      segments.add(mat.colRange(start, end));
+    }
+  }
 }
@@ -1,10 +1,13 @@
 package ch.sebastianhaeni.thermotrains.internals;
 
+import ch.sebastianhaeni.thermotrains.metrics.VisionEvent;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
 import ch.sebastianhaeni.thermotrains.serialization.Calibration;
 import ch.sebastianhaeni.thermotrains.serialization.MatSerialization;
-import ch.sebastianhaeni.thermotrains.util.FileUtil;
+import ch.sebastianhaeni.thermotrains.serialization.UndistortionMaps;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.Rect;
 
@@ -12,15 +15,12 @@ import javax.annotation.Nonnull;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.List;
 
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
-import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
 import static org.opencv.calib3d.Calib3d.getOptimalNewCameraMatrix;
-import static org.opencv.imgcodecs.Imgcodecs.imread;
-import static org.opencv.imgproc.Imgproc.undistort;
+import static org.opencv.imgproc.Imgproc.INTER_LINEAR;
+import static org.opencv.imgproc.Imgproc.initUndistortRectifyMap;
+import static org.opencv.imgproc.Imgproc.remap;
 
 public final class Undistort {
 
@@ -34,15 +34,57 @@ public final class Undistort {
     @Nonnull String outputFolder)
     throws IOException {
 
-    emptyFolder(outputFolder);
+    FrameStage.runOnFolder(stage(CalibrationRegistry.load(calibrationJsonFilename)), inputFolder, outputFolder);
+  }
 
+  /**
+   * Reads the calibration written by {@link CalibrateCamera}.
+   */
+  @Nonnull
+  public static Calibration loadCalibration(@Nonnull String calibrationJsonFilename) throws IOException {
     Gson gson = new GsonBuilder()
       .registerTypeAdapter(Mat.class, new MatSerialization())
       .create();
 
     String fileString = new String(Files.readAllBytes(Paths.get(calibrationJsonFilename)), StandardCharsets.UTF_8);
-    Calibration calibration = gson.fromJson(fileString, Calibration.class);
+    return gson.fromJson(fileString, Calibration.class);
+  }
+
+  /**
+   * Creates the stage undistorting every frame with the given calibration.
+   */
+  @Nonnull
+  public static FrameStage stage(@Nonnull Calibration calibration) {
+    return stage(createMaps(calibration));
+  }
+
+  /**
+   * Creates the stage undistorting every frame with the precomputed maps, e.g. from the {@link CalibrationRegistry}.
+   * The maps are cut to the ROI of the valid pixels, so only the pixels we keep are remapped. They are shared and not
+   * released by the stage.
+   */
+  @Nonnull
+  public static FrameStage stage(@Nonnull UndistortionMaps maps) {
+    return (frame, downstream) -> {
+      Mat dst = new Mat();
+
+      VisionEvent event = VisionEvent.start("remap", frame.getMat());
+      remap(frame.getMat(), dst, maps.getMap1(), maps.getMap2(), INTER_LINEAR);
+      event.commit();
+
+      frame.getMat().release();
 
+      downstream.accept(frame.withMat(dst));
+    };
+  }
+
+  /**
+   * Computes the optimal new camera matrix and the fixed point maps from the undistorted pixels in the ROI of the valid
+   * pixels to the distorted pixels, see {@link org.opencv.imgproc.Imgproc#initUndistortRectifyMap}. The undistortion
+   * only depends on the calibration, so this is done once per camera.
+   */
+  @Nonnull
+  public static UndistortionMaps createMaps(@Nonnull Calibration calibration) {
     Rect roi = new Rect();
 
     Mat optimalNewCameraMatrix = getOptimalNewCameraMatrix(
@@ -54,23 +96,23 @@ public final class Undistort {
       roi,
       false);
 
-    List<Path> inputFiles = FileUtil.getFiles(inputFolder, "**.jpg");
-
-    for (int i = 0; i < inputFiles.size(); i++) {
-      Mat img = imread(inputFiles.get(i).toString());
-      Mat dst = new Mat();
-      undistort(img, dst, calibration.getCameraMatrix(), calibration.getDistCoeffs(), optimalNewCameraMatrix);
-
-      // crop based on ROI
-      int x = roi.x;
-      int y = roi.y;
-      int width = roi.width;
-      int height = roi.height;
+    Mat map1 = new Mat();
+    Mat map2 = new Mat();
+    initUndistortRectifyMap(
+      calibration.getCameraMatrix(),
+      calibration.getDistCoeffs(),
+      new Mat(),
+      optimalNewCameraMatrix,
+      calibration.getImageSize(),
+      CvType.CV_16SC2,
+      map1,
+      map2);
 
-      Mat cropped = new Mat(dst, new Rect(x, y, width, height));
+    Mat roiMap1 = map1.submat(roi).clone();
+    Mat roiMap2 = map2.submat(roi).clone();
+    map1.release();
+    map2.release();
 
-      // save to disk
-      saveMat(outputFolder, cropped, i);
-    }
+    return new UndistortionMaps(calibration, optimalNewCameraMatrix, roi, roiMap1, roiMap2);
   }
 }
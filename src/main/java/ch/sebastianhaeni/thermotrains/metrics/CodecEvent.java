@@ -0,0 +1,55 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import javax.annotation.Nonnull;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning the decoding or encoding of an image or video frame, or skipping video frames.
+ */
+@Name("ch.sebastianhaeni.thermotrains.Codec")
+@Label("Codec")
+@Category({ "Thermo Trains", "Codec" })
+@Description("Decoding or encoding an image or a video frame, or skipping video frames")
+public final class CodecEvent extends Event {
+
+  public static final String DECODE = "decode";
+  public static final String ENCODE = "encode";
+  public static final String SKIP = "skip";
+
+  @Label("Operation")
+  private final String operation;
+  @Label("File")
+  private final String file;
+  @Label("Bytes")
+  @DataAmount
+  private long bytes;
+
+  public CodecEvent(@Nonnull String operation, @Nonnull String file) {
+    this.operation = operation;
+    this.file = file;
+  }
+
+  /**
+   * Creates the event and starts its timing.
+   */
+  @Nonnull
+  public static CodecEvent start(@Nonnull String operation, @Nonnull String file) {
+    CodecEvent event = new CodecEvent(operation, file);
+    event.begin();
+
+    return event;
+  }
+
+  /**
+   * Sets the size of the file read or written, unknown for video frames.
+   */
+  public void setBytes(long bytes) {
+    this.bytes = bytes;
+  }
+}
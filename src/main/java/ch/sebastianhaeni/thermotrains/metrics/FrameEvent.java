@@ -0,0 +1,40 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import javax.annotation.Nonnull;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning the work of a stage on a single frame.
+ */
+@Name("ch.sebastianhaeni.thermotrains.Frame")
+@Label("Frame")
+@Category({ "Thermo Trains", "Pipeline" })
+@Description("A stage processing a single frame, including the stages downstream in a sequential run")
+public final class FrameEvent extends Event {
+
+  @Label("Stage")
+  private final String stage;
+  @Label("Frame Index")
+  private final int index;
+
+  public FrameEvent(@Nonnull String stage, int index) {
+    this.stage = stage;
+    this.index = index;
+  }
+
+  /**
+   * Creates the event and starts its timing.
+   */
+  @Nonnull
+  public static FrameEvent start(@Nonnull String stage, int index) {
+    FrameEvent event = new FrameEvent(stage, index);
+    event.begin();
+
+    return event;
+  }
+}
@@ -0,0 +1,131 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.util.Procedure;
+
+/**
+ * Registry of the {@link StageMetrics} of a run. Every pipeline has its own registry, so pipelines running at once,
+ * e.g. in a batch, are reported separately. The stage a thread is working for is tracked, so codec calls deep down in
+ * the utils are attributed to the right stage of the right pipeline.
+ */
+public final class Metrics {
+
+  private static final Metrics GLOBAL = new Metrics();
+  private static final ThreadLocal<StageMetrics> CURRENT = new ThreadLocal<>();
+  private static final ThreadLocal<long[]> THREAD_CODEC_NANOS = ThreadLocal.withInitial(() -> new long[1]);
+
+  @Nonnull
+  private final Map<String, StageMetrics> stages = new LinkedHashMap<>();
+
+  /**
+   * Gets the registry of the steps that don't run in a pipeline, e.g. a single stage run on a folder.
+   */
+  @Nonnull
+  public static Metrics global() {
+    return GLOBAL;
+  }
+
+  /**
+   * Gets the metrics of the stage, creates them on first use.
+   */
+  @Nonnull
+  public StageMetrics stage(@Nonnull String name) {
+    synchronized (stages) {
+      return stages.computeIfAbsent(name, StageMetrics::new);
+    }
+  }
+
+  /**
+   * Gets the metrics of all stages in the order they were first used.
+   */
+  @Nonnull
+  public List<StageMetrics> getStages() {
+    synchronized (stages) {
+      return new ArrayList<>(stages.values());
+    }
+  }
+
+  public void reset() {
+    synchronized (stages) {
+      stages.clear();
+    }
+  }
+
+  /**
+   * Makes the stage the one the current thread works for.
+   *
+   * @return the stage the thread worked for before
+   */
+  @Nullable
+  public static StageMetrics enter(@Nullable StageMetrics stage) {
+    StageMetrics previous = CURRENT.get();
+    CURRENT.set(stage);
+
+    return previous;
+  }
+
+  /**
+   * Gets the stage the current thread works for.
+   */
+  @Nullable
+  public static StageMetrics current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Records a codec call of the current thread.
+   */
+  public static void recordCodec(long nanos, long bytesRead, long bytesWritten) {
+    THREAD_CODEC_NANOS.get()[0] += nanos;
+
+    StageMetrics stage = CURRENT.get();
+    if (stage != null) {
+      stage.recordCodec(nanos, bytesRead, bytesWritten);
+    }
+  }
+
+  /**
+   * Records the size of an input file the current thread opens, e.g. a video. Unlike the bytes read by a codec call,
+   * this is the size of the whole file, no matter how much of it is decoded.
+   */
+  public static void recordInput(long bytes) {
+    StageMetrics stage = CURRENT.get();
+    if (stage != null) {
+      stage.recordInput(bytes);
+    }
+  }
+
+  /**
+   * Gets the total time the current thread spent in codecs.
+   */
+  public static long getThreadCodecNanos() {
+    return THREAD_CODEC_NANOS.get()[0];
+  }
+
+  /**
+   * Runs a step that doesn't work frame by frame and records its busy time. The step is recorded as a
+   * {@link StageEvent} as well.
+   */
+  public <T extends Exception> void measure(@Nonnull String name, @Nonnull Procedure<T> procedure) throws T {
+    StageMetrics stage = stage(name);
+    StageMetrics previous = enter(stage);
+    StageEvent event = StageEvent.start(name);
+    long codecStart = getThreadCodecNanos();
+    long start = System.nanoTime();
+
+    try {
+      procedure.run();
+    } finally {
+      stage.recordBusy(System.nanoTime() - start, getThreadCodecNanos() - codecStart);
+      event.commit();
+      enter(previous);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.ToDoubleFunction;
+
+import javax.annotation.Nonnull;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFile;
+
+/**
+ * Exports the {@link Metrics} of a run as {@code metrics.json} and as {@code metrics.prom} in the Prometheus text
+ * format, e.g. to be picked up by the textfile collector of the node exporter.
+ */
+public final class MetricsReport {
+
+  private static final Logger LOG = LogManager.getLogger(MetricsReport.class);
+  private static final String PREFIX = "thermotrains_stage_";
+  private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 1.0 };
+  private static final double NANOS_PER_SECOND = 1e9;
+
+  private MetricsReport() {
+    // nop
+  }
+
+  /**
+   * Writes the metrics of all stages to the output folder.
+   */
+  public static void export(@Nonnull Metrics metrics, @Nonnull String outputFolder) {
+    List<StageMetrics> stages = metrics.getStages();
+
+    File json = getFile(outputFolder, "metrics.json");
+    File prometheus = getFile(outputFolder, "metrics.prom");
+
+    write(json, toJson(stages));
+    write(prometheus, toPrometheus(stages));
+
+    for (StageMetrics stage : stages) {
+      LOG.info("{}: {} frames in, {} out, {} frames/s, p50 {} ms, p99 {} ms, codec {} ms, vision {} ms",
+        stage.getName(),
+        stage.getFramesIn(),
+        stage.getFramesOut(),
+        String.format(Locale.ROOT, "%.1f", stage.getThroughput()),
+        stage.getLatencyPercentile(0.5) / 1_000_000,
+        stage.getLatencyPercentile(0.99) / 1_000_000,
+        stage.getCodecNanos() / 1_000_000,
+        stage.getVisionNanos() / 1_000_000);
+    }
+
+    LOG.info("saved {} and {}", json.getAbsoluteFile(), prometheus.getAbsoluteFile());
+  }
+
+  @Nonnull
+  static String toJson(@Nonnull List<StageMetrics> stages) {
+    JsonArray array = new JsonArray();
+
+    for (StageMetrics stage : stages) {
+      JsonObject latency = new JsonObject();
+      for (double quantile : QUANTILES) {
+        latency.addProperty(formatQuantile(quantile), toSeconds(stage.getLatencyPercentile(quantile)));
+      }
+
+      JsonObject object = new JsonObject();
+      object.addProperty("stage", stage.getName());
+      object.addProperty("framesIn", stage.getFramesIn());
+      object.addProperty("framesOut", stage.getFramesOut());
+      object.addProperty("framesPerSecond", stage.getThroughput());
+      object.add("latencySeconds", latency);
+      object.addProperty("busySeconds", toSeconds(stage.getBusyNanos()));
+      object.addProperty("codecSeconds", toSeconds(stage.getCodecNanos()));
+      object.addProperty("visionSeconds", toSeconds(stage.getVisionNanos()));
+      object.addProperty("bytesRead", stage.getBytesRead());
+      object.addProperty("bytesWritten", stage.getBytesWritten());
+      object.addProperty("inputBytes", stage.getInputBytes());
+
+      array.add(object);
+    }
+
+    JsonObject report = new JsonObject();
+    report.add("stages", array);
+
+    Gson gson = new GsonBuilder().setPrettyPrinting().create();
+    return gson.toJson(report);
+  }
+
+  @Nonnull
+  static String toPrometheus(@Nonnull List<StageMetrics> stages) {
+    StringBuilder text = new StringBuilder();
+
+    counter(text, stages, "frames_in_total", "Frames that went into the stage.", StageMetrics::getFramesIn);
+    counter(text, stages, "frames_out_total", "Frames the stage emitted.", StageMetrics::getFramesOut);
+    counter(text, stages, "busy_seconds_total", "Time spent in the stage.", s -> toSeconds(s.getBusyNanos()));
+    counter(text, stages, "codec_seconds_total", "Time spent reading and writing images and videos.",
+      s -> toSeconds(s.getCodecNanos()));
+    counter(text, stages, "vision_seconds_total", "Time spent processing images.", s -> toSeconds(s.getVisionNanos()));
+    counter(text, stages, "read_bytes_total", "Bytes read from disk.", StageMetrics::getBytesRead);
+    counter(text, stages, "written_bytes_total", "Bytes written to disk.", StageMetrics::getBytesWritten);
+    counter(text, stages, "input_bytes_total", "Size of the input files opened, e.g. videos.",
+      StageMetrics::getInputBytes);
+
+    String name = PREFIX + "frame_latency_seconds";
+    text.append("# HELP ").append(name).append(" Time the stage spent on a frame.\n");
+    text.append("# TYPE ").append(name).append(" summary\n");
+
+    for (StageMetrics stage : stages) {
+      String label = "stage=\"" + stage.getName() + "\"";
+
+      for (double quantile : QUANTILES) {
+        sample(text, name, label + ",quantile=\"" + quantile + "\"", toSeconds(stage.getLatencyPercentile(quantile)));
+      }
+
+      sample(text, name + "_sum", label, toSeconds(stage.getLatencySum()));
+      sample(text, name + "_count", label, stage.getFramesIn());
+    }
+
+    return text.toString();
+  }
+
+  private static void counter(
+    @Nonnull StringBuilder text,
+    @Nonnull List<StageMetrics> stages,
+    @Nonnull String suffix,
+    @Nonnull String help,
+    @Nonnull ToDoubleFunction<StageMetrics> value) {
+
+    String name = PREFIX + suffix;
+    text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+    text.append("# TYPE ").append(name).append(" counter\n");
+
+    for (StageMetrics stage : stages) {
+      sample(text, name, "stage=\"" + stage.getName() + "\"", value.applyAsDouble(stage));
+    }
+  }
+
+  private static void sample(@Nonnull StringBuilder text, @Nonnull String name, @Nonnull String labels, double value) {
+    text.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+  }
+
+  @Nonnull
+  private static String formatQuantile(double quantile) {
+    return quantile == 1.0 ? "max" : "p" + Math.round(quantile * 100);
+  }
+
+  private static double toSeconds(long nanos) {
+    return nanos / NANOS_PER_SECOND;
+  }
+
+  private static void write(@Nonnull File file, @Nonnull String content) {
+    try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      writer.write(content);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot write " + file, e);
+    }
+  }
+}
@@ -0,0 +1,37 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import javax.annotation.Nonnull;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder event spanning a stage from its start until it's finished.
+ */
+@Name("ch.sebastianhaeni.thermotrains.Stage")
+@Label("Stage")
+@Category({ "Thermo Trains", "Pipeline" })
+@Description("A pipeline stage from its start until it's finished")
+public final class StageEvent extends Event {
+
+  @Label("Stage")
+  private final String stage;
+
+  public StageEvent(@Nonnull String stage) {
+    this.stage = stage;
+  }
+
+  /**
+   * Creates the event and starts its timing.
+   */
+  @Nonnull
+  public static StageEvent start(@Nonnull String stage) {
+    StageEvent event = new StageEvent(stage);
+    event.begin();
+
+    return event;
+  }
+}
@@ -0,0 +1,150 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import java.util.Arrays;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Counters of a single stage of a {@link Metrics} registry. The workers of a stage, e.g. the decoders of a segmented
+ * extraction, share its metrics.
+ * <p>
+ * The busy time is the time spent in the stage itself, without the time its downstream took. The codec time is spent
+ * reading and writing images and videos on behalf of the stage. The vision time is the busy time without the codec
+ * time, i.e. the actual image processing. The bytes read count what the codecs actually read, e.g. an image, while the
+ * input bytes are the size of the files the stage opened, e.g. a video it only decodes a part of.
+ */
+public final class StageMetrics {
+
+  private static final int INITIAL_CAPACITY = 256;
+
+  @Nonnull
+  private final String name;
+  private long framesIn;
+  private long framesOut;
+  @Nonnull
+  private long[] latencies = new long[INITIAL_CAPACITY];
+  private long busyNanos;
+  private long codecNanos;
+  private long visionNanos;
+  private long bytesRead;
+  private long bytesWritten;
+  private long inputBytes;
+
+  StageMetrics(@Nonnull String name) {
+    this.name = name;
+  }
+
+  /**
+   * Records a frame that went into the stage.
+   *
+   * @param latencyNanos the busy time of the stage for this frame
+   */
+  public synchronized void recordFrame(long latencyNanos) {
+    if (framesIn == latencies.length) {
+      latencies = Arrays.copyOf(latencies, latencies.length * 2);
+    }
+
+    latencies[(int) framesIn] = latencyNanos;
+    framesIn++;
+  }
+
+  /**
+   * Records a frame that the stage emitted.
+   */
+  public synchronized void recordOutput() {
+    framesOut++;
+  }
+
+  /**
+   * Records busy time of the stage.
+   *
+   * @param busyNanos  the time spent in the stage
+   * @param codecNanos the part of it spent in codecs
+   */
+  public synchronized void recordBusy(long busyNanos, long codecNanos) {
+    this.busyNanos += busyNanos;
+    this.visionNanos += busyNanos - codecNanos;
+  }
+
+  synchronized void recordCodec(long nanos, long bytesRead, long bytesWritten) {
+    this.codecNanos += nanos;
+    this.bytesRead += bytesRead;
+    this.bytesWritten += bytesWritten;
+  }
+
+  synchronized void recordInput(long bytes) {
+    this.inputBytes += bytes;
+  }
+
+  /**
+   * Gets the latency percentile of the frames in nanoseconds.
+   *
+   * @param percentile between 0 and 1
+   */
+  public synchronized long getLatencyPercentile(double percentile) {
+    if (framesIn == 0) {
+      return 0;
+    }
+
+    long[] sorted = Arrays.copyOf(latencies, (int) framesIn);
+    Arrays.sort(sorted);
+
+    int index = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+  }
+
+  public synchronized long getLatencySum() {
+    long sum = 0;
+    for (int i = 0; i < framesIn; i++) {
+      sum += latencies[i];
+    }
+    return sum;
+  }
+
+  /**
+   * Gets the frames going into the stage per second of busy time.
+   */
+  public synchronized double getThroughput() {
+    return busyNanos == 0 ? 0 : framesIn / (busyNanos / 1e9);
+  }
+
+  @Nonnull
+  public String getName() {
+    return name;
+  }
+
+  public synchronized long getFramesIn() {
+    return framesIn;
+  }
+
+  public synchronized long getFramesOut() {
+    return framesOut;
+  }
+
+  public synchronized long getBusyNanos() {
+    return busyNanos;
+  }
+
+  public synchronized long getCodecNanos() {
+    return codecNanos;
+  }
+
+  public synchronized long getVisionNanos() {
+    return visionNanos;
+  }
+
+  public synchronized long getBytesRead() {
+    return bytesRead;
+  }
+
+  public synchronized long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Gets the size of the input files the stage opened, e.g. the videos it decoded from.
+   */
+  public synchronized long getInputBytes() {
+    return inputBytes;
+  }
+}
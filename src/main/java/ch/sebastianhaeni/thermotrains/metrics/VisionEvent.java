@@ -0,0 +1,47 @@
+package ch.sebastianhaeni.thermotrains.metrics;
+
+import javax.annotation.Nonnull;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import org.opencv.core.Mat;
+
+/**
+ * Flight recorder event spanning a heavy OpenCV call, e.g. a dilation with a big kernel or a Hough transform.
+ */
+@Name("ch.sebastianhaeni.thermotrains.Vision")
+@Label("Vision")
+@Category({ "Thermo Trains", "Vision" })
+@Description("A heavy OpenCV call")
+public final class VisionEvent extends Event {
+
+  @Label("Operation")
+  private final String operation;
+  @Label("Width")
+  private final int width;
+  @Label("Height")
+  private final int height;
+
+  /**
+   * @param input the image the operation works on
+   */
+  public VisionEvent(@Nonnull String operation, @Nonnull Mat input) {
+    this.operation = operation;
+    this.width = input.width();
+    this.height = input.height();
+  }
+
+  /**
+   * Creates the event and starts its timing.
+   */
+  @Nonnull
+  public static VisionEvent start(@Nonnull String operation, @Nonnull Mat input) {
+    VisionEvent event = new VisionEvent(operation, input);
+    event.begin();
+
+    return event;
+  }
+}
@@ -0,0 +1,63 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import org.opencv.core.Mat;
+
+/**
+ * A single image travelling through the pipeline together with its sequence number and the direction the train
+ * travels in. Frames are never mirrored, stages that depend on the direction take it from here.
+ */
+public final class Frame {
+  private final int index;
+  @Nonnull
+  private final Mat mat;
+  @Nullable
+  private final Direction direction;
+
+  public Frame(int index, @Nonnull Mat mat) {
+    this(index, mat, null);
+  }
+
+  public Frame(int index, @Nonnull Mat mat, @Nullable Direction direction) {
+    this.index = index;
+    this.mat = mat;
+    this.direction = direction;
+  }
+
+  /**
+   * Creates a frame with the same sequence number and direction but a new image. Used by stages that transform the
+   * image.
+   */
+  @Nonnull
+  public Frame withMat(@Nonnull Mat mat) {
+    return new Frame(index, mat, direction);
+  }
+
+  /**
+   * Creates a frame with the same sequence number and image but the direction.
+   */
+  @Nonnull
+  public Frame withDirection(@Nullable Direction direction) {
+    return new Frame(index, mat, direction);
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  @Nonnull
+  public Mat getMat() {
+    return mat;
+  }
+
+  /**
+   * Gets the direction the train travels in, {@code null} if it's not known, e.g. for frames read from disk.
+   */
+  @Nullable
+  public Direction getDirection() {
+    return direction;
+  }
+}
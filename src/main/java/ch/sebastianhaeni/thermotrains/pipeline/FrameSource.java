@@ -0,0 +1,17 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Produces the frames at the start of a pipeline, e.g. by extracting them from a video.
+ */
+@FunctionalInterface
+public interface FrameSource {
+
+  /**
+   * Hands all frames to the downstream consumer in order.
+   */
+  void produce(@Nonnull Consumer<Frame> downstream);
+}
@@ -0,0 +1,94 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import ch.sebastianhaeni.thermotrains.metrics.StageMetrics;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFiles;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.readMat;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
+
+/**
+ * A pipeline stage working on frames in memory. Frames are handed to the stage one by one in the order they were
+ * extracted. Stages that have to see every frame before they can produce anything (e.g. because they take the median
+ * over all frames) buffer them and emit their result in {@link #finish(Consumer)}.
+ * <p>
+ * A stage owns the frames handed to it until it passes them on. Frames it drops or replaces with a new image are
+ * released by the stage, so their native memory is freed right away instead of by the finalizer.
+ */
+@FunctionalInterface
+public interface FrameStage {
+
+  /**
+   * Processes a single frame and passes the result(s) on to the downstream consumer.
+   */
+  void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream);
+
+  /**
+   * Called after the last frame has been processed.
+   */
+  default void finish(@Nonnull Consumer<Frame> downstream) {
+    // nop
+  }
+
+  /**
+   * Runs the stages one after the other on the calling thread. Every frame of the source is handed through all stages
+   * before the next one is produced, so only the frames a stage holds back are in memory. The stages are finished in
+   * order, the output of a finishing stage still goes through the stages after it.
+   */
+  static void runAll(
+    @Nonnull FrameSource source,
+    @Nonnull List<FrameStage> stages,
+    @Nonnull Consumer<Frame> sink) {
+
+    List<Consumer<Frame>> outputs = new ArrayList<>(Collections.nCopies(stages.size(), sink));
+    Consumer<Frame> input = sink;
+
+    for (int i = stages.size() - 1; i >= 0; i--) {
+      FrameStage stage = stages.get(i);
+      Consumer<Frame> output = input;
+
+      outputs.set(i, output);
+      input = frame -> stage.process(frame, output);
+    }
+
+    source.produce(input);
+
+    for (int i = 0; i < stages.size(); i++) {
+      stages.get(i).finish(outputs.get(i));
+    }
+  }
+
+  /**
+   * Runs the stage over all images in the input folder and saves its output to the output folder.
+   */
+  static void runOnFolder(@Nonnull FrameStage stage, @Nonnull String inputFolder, @Nonnull String outputFolder) {
+    emptyFolder(outputFolder);
+
+    List<Path> inputFiles = getFiles(inputFolder, "**.jpg");
+    Consumer<Frame> save = frame -> saveMat(outputFolder, frame.getMat(), frame.getIndex());
+
+    // the stage is named after its output folder, reading and saving is accounted to it as well
+    String name = new File(outputFolder).getName();
+    FrameStage metered = new MeteredStage(Metrics.global(), name, stage);
+    StageMetrics previous = Metrics.enter(Metrics.global().stage(name));
+
+    try {
+      for (int i = 0; i < inputFiles.size(); i++) {
+        metered.process(new Frame(i, readMat(inputFiles.get(i))), save);
+      }
+      metered.finish(save);
+    } finally {
+      Metrics.enter(previous);
+    }
+  }
+}
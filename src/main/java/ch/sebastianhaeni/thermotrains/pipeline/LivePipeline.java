@@ -0,0 +1,118 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.internals.CalibrationRegistry;
+import ch.sebastianhaeni.thermotrains.internals.FusedGeometry;
+import ch.sebastianhaeni.thermotrains.internals.PrepareTrainFrames;
+import ch.sebastianhaeni.thermotrains.internals.SplitTrain;
+import ch.sebastianhaeni.thermotrains.internals.TrainStitcher;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
+
+/**
+ * Runs the train steps on frames coming in live, e.g. from a
+ * {@link ch.sebastianhaeni.thermotrains.internals.LiveCapture}. Every stage runs on its own worker, see
+ * {@link PipelinedStages}, and no stage waits for the last frame: undistorting, straightening, cropping and rectifying
+ * are fused into a single remap that is fixed after the first frames, see {@link FusedGeometry}, the train is stitched
+ * segment by segment and every car is written to {@code <outputFolder>/9-final} as soon as it's cut.
+ */
+public final class LivePipeline {
+
+  private static final Logger LOG = LogManager.getLogger(LivePipeline.class);
+  private static final int DEFAULT_QUEUE_CAPACITY = 4;
+  private static final int DEFAULT_WARMUP = 10;
+  private static final String SOURCE_METRICS = "live";
+
+  @Nonnull
+  private final FrameSource source;
+  @Nonnull
+  private final String calibrationJsonFilename;
+  @Nonnull
+  private final String outputFolder;
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int warmup = DEFAULT_WARMUP;
+  @Nonnull
+  private final Metrics metrics = new Metrics();
+
+  public LivePipeline(
+    @Nonnull FrameSource source,
+    @Nonnull String calibrationJsonFilename,
+    @Nonnull String outputFolder) {
+
+    this.source = source;
+    this.calibrationJsonFilename = calibrationJsonFilename;
+    this.outputFolder = outputFolder;
+  }
+
+  /**
+   * Runs until the source ends.
+   *
+   * @return the cars in the order they were cut
+   */
+  @Nonnull
+  public List<Frame> run() throws IOException, InterruptedException {
+    String folder = new File(outputFolder, TrainStep.SPLIT.getFolderName()).getPath();
+    emptyFolder(folder);
+
+    PipelinedStages stages = new PipelinedStages(queueCapacity);
+    add(stages, TrainStep.EXTRACT, PrepareTrainFrames.stage());
+    add(stages, TrainStep.GEOMETRY, FusedGeometry.stage(CalibrationRegistry.load(calibrationJsonFilename), warmup));
+    add(stages, TrainStep.STITCH, TrainStitcher.liveStage());
+    add(stages, TrainStep.SPLIT, SplitTrain.liveStage());
+
+    List<Frame> cars = new ArrayList<>();
+
+    stages.run(MeteredStage.source(metrics, SOURCE_METRICS, source), car -> {
+      saveMat(folder, car.getMat(), car.getIndex());
+      LOG.info("Car {} is complete", car.getIndex());
+      cars.add(car);
+    });
+
+    return cars;
+  }
+
+  private void add(@Nonnull PipelinedStages stages, @Nonnull TrainStep step, @Nonnull FrameStage stage) {
+    stages.add(step.getFolderName(), new MeteredStage(metrics, step.getFolderName(), stage));
+  }
+
+  /**
+   * Gets the metrics of the stages of this pipeline.
+   */
+  @Nonnull
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Sets the number of frames that may wait in front of a stage.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public int getWarmup() {
+    return warmup;
+  }
+
+  /**
+   * Sets the number of frames with motion the crop box and the perspective transform take their median from before
+   * they are fixed.
+   */
+  public void setWarmup(int warmup) {
+    this.warmup = warmup;
+  }
+}
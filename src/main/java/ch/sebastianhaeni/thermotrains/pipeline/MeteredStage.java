@@ -0,0 +1,131 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.metrics.FrameEvent;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import ch.sebastianhaeni.thermotrains.metrics.StageEvent;
+import ch.sebastianhaeni.thermotrains.metrics.StageMetrics;
+
+/**
+ * Records the {@link StageMetrics} of a stage in the {@link Metrics} of its pipeline. The time the downstream of the
+ * stage takes, e.g. the next stage in a sequential run or a full queue in a pipelined one, is not part of the stage's
+ * busy time.
+ * <p>
+ * The stage is also recorded as a {@link StageEvent} from its first frame until it's finished, and every frame as a
+ * {@link FrameEvent}.
+ */
+final class MeteredStage implements FrameStage {
+
+  @Nonnull
+  private final String name;
+  @Nonnull
+  private final StageMetrics metrics;
+  @Nonnull
+  private final FrameStage stage;
+  @Nullable
+  private StageEvent event;
+
+  MeteredStage(@Nonnull Metrics metrics, @Nonnull String name, @Nonnull FrameStage stage) {
+    this.name = name;
+    this.metrics = metrics.stage(name);
+    this.stage = stage;
+  }
+
+  /**
+   * Wraps the source. Its latency is the busy time between two emitted frames.
+   */
+  @Nonnull
+  static FrameSource source(@Nonnull Metrics registry, @Nonnull String name, @Nonnull FrameSource source) {
+    StageMetrics metrics = registry.stage(name);
+    return downstream -> {
+      StageEvent event = StageEvent.start(name);
+      measure(metrics, source::produce, downstream, true);
+      event.commit();
+    };
+  }
+
+  @Override
+  public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+    start();
+
+    FrameEvent frameEvent = FrameEvent.start(name, frame.getIndex());
+    long busy = measure(metrics, output -> stage.process(frame, output), downstream, false);
+    metrics.recordFrame(busy);
+    frameEvent.commit();
+  }
+
+  @Override
+  public void finish(@Nonnull Consumer<Frame> downstream) {
+    start();
+
+    measure(metrics, stage::finish, downstream, false);
+
+    if (event != null) {
+      event.commit();
+    }
+  }
+
+  /**
+   * Starts the stage event with the first frame.
+   */
+  private void start() {
+    if (event == null) {
+      event = StageEvent.start(name);
+    }
+  }
+
+  /**
+   * Runs the work and records its busy time.
+   *
+   * @param perOutput record a latency for every emitted frame
+   * @return the busy time
+   */
+  private static long measure(
+    @Nonnull StageMetrics metrics,
+    @Nonnull Consumer<Consumer<Frame>> work,
+    @Nonnull Consumer<Frame> downstream,
+    boolean perOutput) {
+
+    StageMetrics previous = Metrics.enter(metrics);
+    long start = System.nanoTime();
+    long codecStart = Metrics.getThreadCodecNanos();
+
+    // time and codec time spent downstream, and the busy time at the last emitted frame
+    long[] excluded = new long[3];
+
+    try {
+      work.accept(frame -> {
+        long downstreamStart = System.nanoTime();
+        long downstreamCodecStart = Metrics.getThreadCodecNanos();
+
+        if (perOutput) {
+          long busy = downstreamStart - start - excluded[0];
+          metrics.recordFrame(busy - excluded[2]);
+          excluded[2] = busy;
+        }
+
+        metrics.recordOutput();
+        Metrics.enter(previous);
+
+        try {
+          downstream.accept(frame);
+        } finally {
+          Metrics.enter(metrics);
+          excluded[0] += System.nanoTime() - downstreamStart;
+          excluded[1] += Metrics.getThreadCodecNanos() - downstreamCodecStart;
+        }
+      });
+    } finally {
+      Metrics.enter(previous);
+    }
+
+    long busy = System.nanoTime() - start - excluded[0];
+    metrics.recordBusy(busy, Metrics.getThreadCodecNanos() - codecStart - excluded[1]);
+
+    return busy;
+  }
+}
@@ -0,0 +1,155 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Runs a chain of stages concurrently, every stage on its own worker. The workers are connected with bounded queues.
+ * A stage can work on frame N while its predecessor is already producing frame N + 1. If a stage can't keep up, the
+ * queue in front of it fills up and blocks its predecessor, so the frames in flight stay bounded by the queue capacity.
+ * Stages that buffer their frames until {@link FrameStage#finish(Consumer)} still hold on to them, of course.
+ */
+public final class PipelinedStages {
+
+  private final int queueCapacity;
+  @Nonnull
+  private final List<String> names = new ArrayList<>();
+  @Nonnull
+  private final List<FrameStage> stages = new ArrayList<>();
+
+  /**
+   * @param queueCapacity maximum number of frames waiting in front of every stage
+   */
+  public PipelinedStages(int queueCapacity) {
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("The queue capacity must be at least 1");
+    }
+
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Appends a stage to the chain. The name is used for the worker thread.
+   */
+  public void add(@Nonnull String name, @Nonnull FrameStage stage) {
+    names.add(name);
+    stages.add(stage);
+  }
+
+  /**
+   * Feeds the frames of the source through all stages and hands the output of the last stage to the sink. The sink is
+   * called from a worker thread. Blocks until all frames went through or a stage failed. The first failure cancels all
+   * other workers and is rethrown.
+   */
+  public void run(@Nonnull FrameSource source, @Nonnull Consumer<Frame> sink) throws InterruptedException {
+    List<BlockingQueue<Optional<Frame>>> queues = new ArrayList<>();
+    for (int i = 0; i < stages.size(); i++) {
+      queues.add(new ArrayBlockingQueue<>(queueCapacity));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(stages.size() + 1);
+    CompletionService<Void> completion = new ExecutorCompletionService<>(executor);
+
+    try {
+      completion.submit(() -> {
+        Thread.currentThread().setName("stage-source");
+        Consumer<Frame> downstream = downstream(queues, 0, sink);
+        source.produce(downstream);
+        endOfStream(queues, 0);
+        return null;
+      });
+
+      for (int i = 0; i < stages.size(); i++) {
+        int index = i;
+        completion.submit(() -> {
+          Thread.currentThread().setName("stage-" + names.get(index));
+          work(stages.get(index), queues.get(index), downstream(queues, index + 1, sink));
+          endOfStream(queues, index + 1);
+          return null;
+        });
+      }
+
+      for (int i = 0; i <= stages.size(); i++) {
+        completion.take().get();
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+
+      throw new IllegalStateException(cause);
+    } finally {
+      // interrupts the workers that are still blocked in case one of them failed
+      executor.shutdownNow();
+    }
+  }
+
+  private static void work(
+    @Nonnull FrameStage stage,
+    @Nonnull BlockingQueue<Optional<Frame>> input,
+    @Nonnull Consumer<Frame> downstream) throws InterruptedException {
+
+    while (true) {
+      Optional<Frame> frame = input.take();
+
+      if (!frame.isPresent()) {
+        stage.finish(downstream);
+        return;
+      }
+
+      stage.process(frame.get(), downstream);
+    }
+  }
+
+  /**
+   * Gets the consumer feeding the queue at the index, or the sink if the index is past the last stage.
+   */
+  @Nonnull
+  private static Consumer<Frame> downstream(
+    @Nonnull List<BlockingQueue<Optional<Frame>>> queues,
+    int index,
+    @Nonnull Consumer<Frame> sink) {
+
+    if (index >= queues.size()) {
+      return sink;
+    }
+
+    BlockingQueue<Optional<Frame>> queue = queues.get(index);
+    return frame -> put(queue, Optional.of(frame));
+  }
+
+  private static void endOfStream(@Nonnull List<BlockingQueue<Optional<Frame>>> queues, int index) {
+    if (index < queues.size()) {
+      put(queues.get(index), Optional.empty());
+    }
+  }
+
+  /**
+   * Puts the frame into the queue, blocks while the queue is full.
+   */
+  private static void put(@Nonnull BlockingQueue<Optional<Frame>> queue, @Nonnull Optional<Frame> frame) {
+    try {
+      queue.put(frame);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException("Pipeline has been cancelled");
+    }
+  }
+}
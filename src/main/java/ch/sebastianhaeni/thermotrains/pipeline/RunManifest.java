@@ -0,0 +1,206 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static ch.sebastianhaeni.thermotrains.pipeline.StageCache.hash;
+import static ch.sebastianhaeni.thermotrains.pipeline.StageCache.hashFile;
+
+/**
+ * Records the completed steps of a run in {@code <outputFolder>/manifest.json}, together with the parameters they ran
+ * with and the checksums of their output files. A step is complete as long as its parameters are the same and its
+ * output files are unchanged, so an interrupted run can resume with the first step that isn't complete.
+ * <p>
+ * The manifest belongs to a set of inputs. If the fingerprint of the inputs changes, all steps are incomplete again.
+ */
+public final class RunManifest {
+
+  private static final Logger LOG = LogManager.getLogger(RunManifest.class);
+  private static final String FILENAME = "manifest.json";
+  private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+  @Nonnull
+  private final transient File file;
+  @Nonnull
+  private String fingerprint;
+  @Nonnull
+  private TreeMap<Integer, StepRecord> steps = new TreeMap<>();
+
+  private RunManifest(@Nonnull File file, @Nonnull String fingerprint) {
+    this.file = file;
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Loads the manifest of the output folder. A missing manifest or one for other inputs results in an empty manifest.
+   */
+  @Nonnull
+  public static RunManifest load(@Nonnull String outputFolder, @Nonnull String fingerprint) {
+    File file = new File(outputFolder, FILENAME);
+    RunManifest manifest = new RunManifest(file, fingerprint);
+
+    if (!file.exists()) {
+      return manifest;
+    }
+
+    try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      RunManifest stored = GSON.fromJson(reader, RunManifest.class);
+
+      if (stored == null || !fingerprint.equals(stored.fingerprint)) {
+        LOG.info("The inputs changed since the last run, starting over");
+        return manifest;
+      }
+
+      manifest.steps = stored.steps;
+    } catch (IOException | JsonParseException e) {
+      LOG.warn("Cannot read {}, starting over", file, e);
+    }
+
+    return manifest;
+  }
+
+  /**
+   * Fingerprints the input files by their path, size and modification time. Missing files are left out, so an optional
+   * input that isn't there doesn't tie the manifest to its absence.
+   */
+  @Nonnull
+  public static String fingerprint(@Nonnull String... inputFiles) {
+    String[] parts = Stream.of(inputFiles)
+      .map(File::new)
+      .filter(File::exists)
+      .map(input -> input.getAbsolutePath() + ':' + input.length() + ':' + input.lastModified())
+      .toArray(String[]::new);
+
+    return hash(parts);
+  }
+
+  /**
+   * Checks whether the step completed with the same parameters and its output files are unchanged.
+   */
+  public synchronized boolean isComplete(int step, @Nonnull String parameters) {
+    StepRecord record = steps.get(step);
+
+    if (record == null || !hash(parameters).equals(record.parameters)) {
+      return false;
+    }
+
+    if (record.folder == null) {
+      return true;
+    }
+
+    try {
+      return record.checksums.equals(computeChecksums(record.folder));
+    } catch (IOException | UncheckedIOException e) {
+      LOG.warn("Cannot verify the output of step {}", step, e);
+      return false;
+    }
+  }
+
+  /**
+   * Checks whether the step has written its output to a folder, i.e. a run can start after it.
+   */
+  public synchronized boolean hasOutput(int step) {
+    StepRecord record = steps.get(step);
+    return record != null && record.folder != null;
+  }
+
+  /**
+   * Records the step as complete and saves the manifest.
+   *
+   * @param folder the folder with the output of the step, {@code null} if it's only kept in memory
+   */
+  public synchronized void complete(int step, @Nonnull String parameters, @Nullable String folder) {
+    StepRecord record = new StepRecord();
+    record.parameters = hash(parameters);
+    record.folder = folder;
+    record.completed = System.currentTimeMillis();
+
+    if (folder != null) {
+      try {
+        record.checksums = computeChecksums(folder);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot compute the checksums of " + folder, e);
+      }
+    }
+
+    steps.put(step, record);
+    save();
+  }
+
+  /**
+   * Forgets the step and all steps after it, since they depend on its output.
+   */
+  public synchronized void invalidateFrom(int step) {
+    if (steps.tailMap(step).isEmpty()) {
+      return;
+    }
+
+    steps.tailMap(step).clear();
+    save();
+  }
+
+  private void save() {
+    File temp = new File(file.getPath() + ".tmp");
+
+    try {
+      Files.createDirectories(file.getAbsoluteFile().getParentFile().toPath());
+
+      try (Writer writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+        GSON.toJson(this, writer);
+      }
+
+      // a crash while saving must not corrupt the manifest
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot save " + file, e);
+    }
+  }
+
+  @Nonnull
+  private static TreeMap<String, String> computeChecksums(@Nonnull String folder) throws IOException {
+    Path root = new File(folder).toPath();
+    TreeMap<String, String> checksums = new TreeMap<>();
+
+    if (!Files.isDirectory(root)) {
+      return checksums;
+    }
+
+    try (Stream<Path> files = Files.walk(root)) {
+      for (Path path : files.filter(Files::isRegularFile).collect(Collectors.toList())) {
+        checksums.put(root.relativize(path).toString(), hashFile(path));
+      }
+    }
+
+    return checksums;
+  }
+
+  private static final class StepRecord {
+    @Nonnull
+    private String parameters = "";
+    @Nullable
+    private String folder;
+    @Nonnull
+    private Map<String, String> checksums = new TreeMap<>();
+    private long completed;
+  }
+}
@@ -0,0 +1,430 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.Mat;
+
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.readMat;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.writeMat;
+
+/**
+ * Content addressed cache of stage outputs. The key of an output is built from the key of the stage's input, the
+ * identity of the stage and its parameters. The chain starts with the hash of the video's content, so a key stands for
+ * the output of a stage for exactly this input and these parameters. Outputs are stored losslessly as PNG, so a cached
+ * output is the same as a freshly computed one. Every frame is a file named after its index and, if known, the
+ * direction of the train, e.g. {@code 12-FORWARD.png}. Once the cache grows beyond its maximum size, the least recently
+ * used entries are evicted.
+ * <p>
+ * An entry that is read is pinned, so the pipelines sharing the cache can't evict it underneath the reader. The pins
+ * are kept in memory, so the pipelines have to share one instance of the cache.
+ */
+public final class StageCache {
+
+  private static final Logger LOG = LogManager.getLogger(StageCache.class);
+
+  /**
+   * Part of every key. Increment it if a stage changes in a way that isn't covered by its parameters.
+   */
+  private static final int VERSION = 2;
+  private static final String EXTENSION = ".png";
+  private static final char DIRECTION_SEPARATOR = '-';
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final long STALE_TEMP_MILLIS = 24 * 60 * 60 * 1000L;
+
+  @Nonnull
+  private final Path folder;
+  private final long maxBytes;
+  @Nonnull
+  private final Map<String, Integer> pins = new HashMap<>();
+
+  /**
+   * @param folder   the folder the entries are stored in
+   * @param maxBytes the size the cache is shrunk to after every new entry
+   */
+  public StageCache(@Nonnull String folder, long maxBytes) {
+    this.folder = new File(folder).toPath();
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Builds a key from the given parts, e.g. the key of the input, the stage name and the stage parameters.
+   */
+  @Nonnull
+  public static String hash(@Nonnull String... parts) {
+    MessageDigest digest = createDigest();
+    digest.update(Integer.toString(VERSION).getBytes(StandardCharsets.UTF_8));
+
+    for (String part : parts) {
+      digest.update((byte) 0);
+      digest.update(part.getBytes(StandardCharsets.UTF_8));
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Hashes the content of the file.
+   */
+  @Nonnull
+  public static String hashFile(@Nonnull Path file) throws IOException {
+    MessageDigest digest = createDigest();
+    byte[] buffer = new byte[1 << 16];
+
+    try (InputStream in = Files.newInputStream(file)) {
+      int read;
+      while ((read = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, read);
+      }
+    }
+
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Describes the parameters of the given classes. All their primitive and string constants are considered parameters.
+   */
+  @Nonnull
+  public static String describeParameters(@Nonnull Class<?>... classes) {
+    StringBuilder description = new StringBuilder();
+
+    for (Class<?> type : classes) {
+      description.append(type.getName()).append('{');
+
+      Field[] fields = type.getDeclaredFields();
+      Arrays.sort(fields, Comparator.comparing(Field::getName));
+
+      for (Field field : fields) {
+        int modifiers = field.getModifiers();
+        Class<?> fieldType = field.getType();
+
+        if (!Modifier.isStatic(modifiers) || !Modifier.isFinal(modifiers)) {
+          continue;
+        }
+        if (!fieldType.isPrimitive() && fieldType != String.class) {
+          continue;
+        }
+
+        field.setAccessible(true);
+
+        try {
+          description.append(field.getName()).append('=').append(field.get(null)).append(';');
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException("Cannot read parameter " + field, e);
+        }
+      }
+
+      description.append('}');
+    }
+
+    return description.toString();
+  }
+
+  /**
+   * Checks whether there is an entry for the key.
+   */
+  public boolean contains(@Nonnull String key) {
+    return Files.isDirectory(folder.resolve(key));
+  }
+
+  /**
+   * Pins the entry, so it isn't evicted until it's unpinned again. Every pin has to be undone by
+   * {@link #unpin(String)}.
+   *
+   * @return {@code false} if there is no entry for the key, e.g. because it was evicted in the meantime
+   */
+  public synchronized boolean pin(@Nonnull String key) {
+    if (!contains(key)) {
+      return false;
+    }
+
+    pins.merge(key, 1, Integer::sum);
+    return true;
+  }
+
+  /**
+   * Undoes a pin of the entry.
+   */
+  public synchronized void unpin(@Nonnull String key) {
+    pins.computeIfPresent(key, (k, count) -> count > 1 ? count - 1 : null);
+  }
+
+  /**
+   * Hands the frames of the entry to the downstream consumer. The entry is pinned while it's read.
+   *
+   * @return {@code false} if there is no entry for the key, e.g. because it was evicted in the meantime
+   */
+  public boolean load(@Nonnull String key, @Nonnull Consumer<Frame> downstream) {
+    if (!pin(key)) {
+      return false;
+    }
+
+    try {
+      read(key, downstream);
+    } finally {
+      unpin(key);
+    }
+
+    return true;
+  }
+
+  private void read(@Nonnull String key, @Nonnull Consumer<Frame> downstream) {
+    Path entry = folder.resolve(key);
+    List<Path> files;
+
+    try {
+      // mark as recently used, so it's evicted last
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+
+      try (Stream<Path> list = Files.list(entry)) {
+        files = list
+          .filter(file -> file.toString().endsWith(EXTENSION))
+          .sorted(Comparator.comparingInt(StageCache::getIndex))
+          .collect(Collectors.toList());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot read cache entry " + key, e);
+    }
+
+    LOG.info("Loading {} frames from cache entry {}", files.size(), key);
+
+    for (Path file : files) {
+      Mat mat = readMat(file);
+
+      if (mat.empty()) {
+        throw new IllegalStateException("Cannot read cached frame " + file);
+      }
+
+      downstream.accept(new Frame(getIndex(file), mat, getDirection(file)));
+    }
+  }
+
+  @Nonnull
+  private static String getFilename(@Nonnull Frame frame) {
+    if (frame.getDirection() == null) {
+      return frame.getIndex() + EXTENSION;
+    }
+
+    return frame.getIndex() + DIRECTION_SEPARATOR + frame.getDirection().name() + EXTENSION;
+  }
+
+  private static int getIndex(@Nonnull Path file) {
+    String name = getBaseName(file);
+    int separator = name.indexOf(DIRECTION_SEPARATOR);
+
+    return Integer.parseInt(separator < 0 ? name : name.substring(0, separator));
+  }
+
+  @Nullable
+  private static Direction getDirection(@Nonnull Path file) {
+    String name = getBaseName(file);
+    int separator = name.indexOf(DIRECTION_SEPARATOR);
+
+    return separator < 0 ? null : Direction.valueOf(name.substring(separator + 1));
+  }
+
+  @Nonnull
+  private static String getBaseName(@Nonnull Path file) {
+    String name = file.getFileName().toString();
+    return name.substring(0, name.length() - EXTENSION.length());
+  }
+
+  /**
+   * Starts a new entry. The entry only becomes visible once it's committed.
+   */
+  @Nonnull
+  public Writer write(@Nonnull String key) {
+    Path temp = folder.resolve(key + "." + UUID.randomUUID() + TEMP_SUFFIX);
+
+    try {
+      Files.createDirectories(temp);
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot create cache entry " + key, e);
+    }
+
+    return new Writer(key, temp);
+  }
+
+  /**
+   * Evicts the least recently used entries until the cache is not bigger than its maximum size. Pinned entries are
+   * kept. Left over temporary entries of crashed runs are removed as well.
+   */
+  public synchronized void evict() {
+    if (!Files.isDirectory(folder)) {
+      return;
+    }
+
+    List<Path> entries = new ArrayList<>();
+    long now = System.currentTimeMillis();
+
+    try (Stream<Path> list = Files.list(folder)) {
+      for (Path path : (Iterable<Path>) list::iterator) {
+        if (!path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+          entries.add(path);
+        } else if (now - Files.getLastModifiedTime(path).toMillis() > STALE_TEMP_MILLIS) {
+          deleteRecursively(path);
+        }
+      }
+
+      entries.sort(Comparator.comparing(StageCache::getLastModified));
+
+      long size = 0;
+      for (Path entry : entries) {
+        size += getSize(entry);
+      }
+
+      for (Path entry : entries) {
+        if (size <= maxBytes) {
+          break;
+        }
+        if (pins.containsKey(entry.getFileName().toString())) {
+          continue;
+        }
+
+        long entrySize = getSize(entry);
+        LOG.info("Evicting cache entry {} ({} bytes)", entry.getFileName(), entrySize);
+
+        deleteRecursively(entry);
+        size -= entrySize;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Cannot evict entries from " + folder, e);
+    }
+  }
+
+  @Nonnull
+  private static FileTime getLastModified(@Nonnull Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static long getSize(@Nonnull Path entry) throws IOException {
+    try (Stream<Path> files = Files.walk(entry)) {
+      return files
+        .filter(Files::isRegularFile)
+        .mapToLong(file -> file.toFile().length())
+        .sum();
+    }
+  }
+
+  private static void deleteRecursively(@Nonnull Path path) throws IOException {
+    Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        Files.delete(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+        Files.delete(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  @Nonnull
+  private static MessageDigest createDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not supported", e);
+    }
+  }
+
+  @Nonnull
+  private static String toHex(@Nonnull byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+
+    return hex.toString();
+  }
+
+  /**
+   * Writes the frames of a new entry into a temporary folder that is moved into place on commit. This way other
+   * pipelines sharing the cache never see half written entries.
+   */
+  public final class Writer {
+    @Nonnull
+    private final String key;
+    @Nonnull
+    private final Path temp;
+
+    private Writer(@Nonnull String key, @Nonnull Path temp) {
+      this.key = key;
+      this.temp = temp;
+    }
+
+    public void write(@Nonnull Frame frame) {
+      writeMat(temp.resolve(getFilename(frame)).toFile(), frame.getMat());
+    }
+
+    /**
+     * Makes the entry visible and evicts old entries if the cache got too big.
+     */
+    public void commit() {
+      try {
+        if (contains(key)) {
+          // another pipeline stored the same output in the meantime
+          deleteRecursively(temp);
+        } else {
+          Files.move(temp, folder.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+          LOG.info("Stored cache entry {}", key);
+        }
+      } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+        // another pipeline committed the same output between the check and the move
+        discard();
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot commit cache entry " + key, e);
+      }
+
+      evict();
+    }
+
+    private void discard() {
+      try {
+        deleteRecursively(temp);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Cannot delete " + temp, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,583 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.internals.CalibrationRegistry;
+import ch.sebastianhaeni.thermotrains.internals.DirectionEstimator;
+import ch.sebastianhaeni.thermotrains.internals.DuplicateFilter;
+import ch.sebastianhaeni.thermotrains.internals.ExtractFrames;
+import ch.sebastianhaeni.thermotrains.internals.FrameSampler;
+import ch.sebastianhaeni.thermotrains.internals.FusedGeometry;
+import ch.sebastianhaeni.thermotrains.internals.MotionCrop;
+import ch.sebastianhaeni.thermotrains.internals.PrepareTrainFrames;
+import ch.sebastianhaeni.thermotrains.internals.Rectify;
+import ch.sebastianhaeni.thermotrains.internals.SplitTrain;
+import ch.sebastianhaeni.thermotrains.internals.Straighten;
+import ch.sebastianhaeni.thermotrains.internals.TrainPresence;
+import ch.sebastianhaeni.thermotrains.internals.TrainStitcher;
+import ch.sebastianhaeni.thermotrains.internals.Undistort;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static ch.sebastianhaeni.thermotrains.pipeline.StageCache.describeParameters;
+import static ch.sebastianhaeni.thermotrains.pipeline.StageCache.hash;
+import static ch.sebastianhaeni.thermotrains.pipeline.StageCache.hashFile;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.emptyFolder;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.getFiles;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.readMat;
+import static ch.sebastianhaeni.thermotrains.util.FileUtil.saveMat;
+
+/**
+ * Runs the steps from extracting the train frames up to splitting the train into cars. The frames are piped from stage
+ * to stage in memory. Writing to disk is a tap: only the steps in {@link #setTappedSteps(Set)} are written to
+ * {@code <outputFolder>/<step folder>}, by default that's just the final cars. Undistorting, straightening, cropping
+ * and rectifying run as the single step {@link TrainStep#GEOMETRY}, see {@link FusedGeometry}.
+ * <p>
+ * In pipelined mode every stage runs on its own worker, see {@link PipelinedStages}. Otherwise every frame passes all
+ * stages before the next one is extracted. Either way, no step holds more than a few frames back: the geometry is fixed
+ * after {@link #setWarmup(int) the warmup frames} and stitching keeps only the segments of the panorama.
+ * <p>
+ * With a {@link StageCache} the output of every step is cached. A run resumes after the last step whose output is
+ * cached for this video, calibration and stage parameters.
+ * <p>
+ * With a {@link RunManifest} every completed step is recorded, so {@link #resume()} can continue an interrupted run.
+ * <p>
+ * The metrics of the steps are recorded in the pipeline's own {@link Metrics}, so pipelines running at once don't mix
+ * up their metrics.
+ */
+public final class TrainPipeline {
+
+  private static final Logger LOG = LogManager.getLogger(TrainPipeline.class);
+  private static final int DEFAULT_QUEUE_CAPACITY = 4;
+  private static final int DEFAULT_WARMUP = 10;
+  private static final String CACHE_METRICS = "cache";
+  private static final String DISK_METRICS = "disk";
+
+  @Nonnull
+  private final String inputVideoFilename;
+  @Nonnull
+  private final String calibrationJsonFilename;
+  @Nonnull
+  private final String outputFolder;
+  @Nonnull
+  private Set<TrainStep> tappedSteps = EnumSet.of(TrainStep.SPLIT);
+  private boolean pipelined;
+  private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int warmup = DEFAULT_WARMUP;
+  @Nonnull
+  private Metrics metrics = new Metrics();
+  @Nullable
+  private StageCache cache;
+  @Nullable
+  private RunManifest manifest;
+
+  public TrainPipeline(
+    @Nonnull String inputVideoFilename,
+    @Nonnull String calibrationJsonFilename,
+    @Nonnull String outputFolder) {
+
+    this.inputVideoFilename = inputVideoFilename;
+    this.calibrationJsonFilename = calibrationJsonFilename;
+    this.outputFolder = outputFolder;
+  }
+
+  /**
+   * Runs all steps.
+   */
+  @Nonnull
+  public List<Frame> run() throws IOException, InterruptedException {
+    return run(TrainStep.EXTRACT, TrainStep.SPLIT);
+  }
+
+  /**
+   * Runs the steps that are not complete according to the manifest. The run starts after the last complete step whose
+   * output is on disk, all steps after it are run again.
+   *
+   * @return the frames produced by the last step
+   */
+  @Nonnull
+  public List<Frame> resume() throws IOException, InterruptedException {
+    if (manifest == null) {
+      throw new IllegalStateException("Resuming a run requires a manifest");
+    }
+
+    TrainStep start = TrainStep.EXTRACT;
+
+    for (TrainStep step : TrainStep.values()) {
+      if (!manifest.isComplete(step.getNumber(), describe(step))) {
+        LOG.info("Resuming with step {}, step {} is not complete", start.getNumber(), step.getNumber());
+        return run(start, TrainStep.SPLIT);
+      }
+
+      if (step != TrainStep.SPLIT && manifest.hasOutput(step.getNumber())) {
+        start = TrainStep.values()[step.ordinal() + 1];
+      }
+    }
+
+    if (!manifest.hasOutput(TrainStep.SPLIT.getNumber())) {
+      return run(start, TrainStep.SPLIT);
+    }
+
+    LOG.info("All steps are complete");
+
+    List<Frame> output = new ArrayList<>();
+    load(TrainStep.SPLIT, output::add);
+
+    return output;
+  }
+
+  /**
+   * Runs the steps from start to stop. If start is not the first step, the output of the step before has to be present
+   * on disk already, i.e. it must have been tapped in a previous run, or it has to be cached.
+   *
+   * @return the frames produced by the stop step
+   */
+  @Nonnull
+  public List<Frame> run(@Nonnull TrainStep start, @Nonnull TrainStep stop) throws IOException, InterruptedException {
+    if (manifest != null) {
+      manifest.invalidateFrom(start.getNumber());
+    }
+
+    Map<TrainStep, String> keys = cache == null ? new EnumMap<>(TrainStep.class) : computeKeys();
+    TrainStep cached = findCachedStep(start, stop, keys);
+
+    try {
+      return run(start, stop, keys, cached);
+    } finally {
+      if (cache != null && cached != null) {
+        cache.unpin(keys.get(cached));
+      }
+    }
+  }
+
+  /**
+   * Runs the steps from start to stop, starting with the output of the cached step if there is one.
+   */
+  @Nonnull
+  private List<Frame> run(
+    @Nonnull TrainStep start,
+    @Nonnull TrainStep stop,
+    @Nonnull Map<TrainStep, String> keys,
+    @Nullable TrainStep cached) throws IOException, InterruptedException {
+
+    List<Frame> output = new ArrayList<>();
+
+    FrameSource source;
+    TrainStep first;
+    boolean record;
+
+    if (cached == null) {
+      source = createSource(start, start == TrainStep.EXTRACT ? keys : new EnumMap<>(TrainStep.class));
+      first = start;
+      // outputs computed from frames on disk can't be traced back to the video, so they are not cached
+      record = start == TrainStep.EXTRACT;
+    } else {
+      restoreTaps(start, cached, keys);
+
+      String key = keys.get(cached);
+      Consumer<Frame> tap = tap(cached);
+      source = MeteredStage.source(metrics, CACHE_METRICS, downstream -> {
+        // the entry is pinned, so it can't be gone
+        if (!loadCached(cached, key, tap.andThen(downstream))) {
+          throw new IllegalStateException("The cache entry of step " + cached.getNumber() + " is gone");
+        }
+
+        complete(cached);
+      });
+
+      if (cached == stop) {
+        source.produce(output::add);
+        return output;
+      }
+
+      first = TrainStep.values()[cached.ordinal() + 1];
+      record = true;
+    }
+
+    Map<TrainStep, String> recordedKeys = record ? keys : new EnumMap<>(TrainStep.class);
+
+    if (pipelined) {
+      LOG.info("Running steps {} to {} pipelined", first.getNumber(), stop.getNumber());
+
+      PipelinedStages stages = new PipelinedStages(queueCapacity);
+      for (TrainStep step : getFrameSteps(first, stop)) {
+        stages.add(step.getFolderName(), createStage(step, recordedKeys.get(step)));
+      }
+
+      stages.run(source, output::add);
+
+      return output;
+    }
+
+    LOG.info("Running steps {} to {}", first.getNumber(), stop.getNumber());
+
+    List<FrameStage> stages = new ArrayList<>();
+    for (TrainStep step : getFrameSteps(first, stop)) {
+      stages.add(createStage(step, recordedKeys.get(step)));
+    }
+
+    FrameStage.runAll(source, stages, output::add);
+
+    return output;
+  }
+
+  /**
+   * Computes the cache key of every step. Every key depends on the key of the step before, the first one on the video.
+   */
+  @Nonnull
+  private Map<TrainStep, String> computeKeys() throws IOException {
+    Map<TrainStep, String> keys = new EnumMap<>(TrainStep.class);
+    String key = hashFile(Paths.get(inputVideoFilename));
+
+    for (TrainStep step : TrainStep.values()) {
+      key = hash(key, step.name(), describe(step));
+      keys.put(step, key);
+    }
+
+    return keys;
+  }
+
+  /**
+   * Describes the stage of the step with everything its output depends on besides its input.
+   */
+  @Nonnull
+  private String describe(@Nonnull TrainStep step) {
+    switch (step) {
+      case EXTRACT:
+        return describeParameters(PrepareTrainFrames.class, ExtractFrames.class, DirectionEstimator.class,
+          FrameSampler.class, TrainPresence.class, DuplicateFilter.class);
+      case GEOMETRY:
+        try {
+          return describeParameters(FusedGeometry.class, Undistort.class, Straighten.class, MotionCrop.class,
+            Rectify.class) + "warmup=" + warmup + ';' + hashFile(Paths.get(calibrationJsonFilename));
+        } catch (IOException e) {
+          throw new UncheckedIOException("Cannot read " + calibrationJsonFilename, e);
+        }
+      case STITCH:
+        return describeParameters(TrainStitcher.class);
+      case SPLIT:
+        return describeParameters(SplitTrain.class);
+      default:
+        throw new IllegalArgumentException("Unknown step " + step);
+    }
+  }
+
+  /**
+   * Finds the last step in the range whose output is cached and pins its entry, so it's not evicted before it's loaded.
+   */
+  @Nullable
+  private TrainStep findCachedStep(
+    @Nonnull TrainStep start,
+    @Nonnull TrainStep stop,
+    @Nonnull Map<TrainStep, String> keys) {
+
+    if (cache == null) {
+      return null;
+    }
+
+    TrainStep[] steps = TrainStep.values();
+
+    for (int i = stop.ordinal(); i >= start.ordinal(); i--) {
+      String key = keys.get(steps[i]);
+
+      if (key != null && cache.pin(key)) {
+        return steps[i];
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * Writes the tapped steps that are skipped because a later step is cached from the cache.
+   */
+  private void restoreTaps(
+    @Nonnull TrainStep start,
+    @Nonnull TrainStep cached,
+    @Nonnull Map<TrainStep, String> keys) {
+
+    for (TrainStep step : EnumSet.range(start, cached)) {
+      if (step == cached) {
+        continue;
+      }
+
+      String key = keys.get(step);
+
+      if (!tappedSteps.contains(step)) {
+        complete(step);
+      } else if (cache != null && loadCached(step, key, tap(step))) {
+        complete(step);
+      } else {
+        LOG.warn("The output of step {} is not cached anymore, {} is not updated", step.getNumber(), getFolder(step));
+      }
+    }
+  }
+
+  /**
+   * Loads the cached output of the step.
+   *
+   * @return {@code false} if the output is not cached anymore
+   */
+  private boolean loadCached(@Nonnull TrainStep step, @Nonnull String key, @Nonnull Consumer<Frame> downstream) {
+    if (cache == null) {
+      throw new IllegalStateException("There is no cache");
+    }
+
+    LOG.info("Using cached output of step {}", step.getNumber());
+    return cache.load(key, downstream);
+  }
+
+  /**
+   * Gets the steps in the range that are run by a {@link FrameStage}, i.e. every step except the extraction.
+   */
+  @Nonnull
+  private static Set<TrainStep> getFrameSteps(@Nonnull TrainStep start, @Nonnull TrainStep stop) {
+    Set<TrainStep> steps = EnumSet.range(start, stop);
+    steps.remove(TrainStep.EXTRACT);
+
+    return steps;
+  }
+
+  /**
+   * Creates the source of the frames going into the start step. That's either the video or the output of the step
+   * before on disk.
+   */
+  @Nonnull
+  private FrameSource createSource(@Nonnull TrainStep start, @Nonnull Map<TrainStep, String> keys) {
+    if (start != TrainStep.EXTRACT) {
+      TrainStep previous = TrainStep.values()[start.ordinal() - 1];
+      return MeteredStage.source(metrics, DISK_METRICS, downstream -> load(previous, downstream));
+    }
+
+    StageCache.Writer writer = createWriter(keys.get(TrainStep.EXTRACT));
+    Consumer<Frame> output = output(TrainStep.EXTRACT, writer);
+
+    return MeteredStage.source(metrics, TrainStep.EXTRACT.getFolderName(), downstream -> {
+      LOG.info("Running step {}", TrainStep.EXTRACT.getNumber());
+
+      PrepareTrainFrames.prepare(inputVideoFilename, output.andThen(downstream));
+
+      if (writer != null) {
+        writer.commit();
+      }
+
+      complete(TrainStep.EXTRACT);
+    });
+  }
+
+  /**
+   * Creates the stage of the step. Its output is tapped and, if there is a key, recorded in the cache. Its metrics are
+   * recorded under the name of its folder.
+   */
+  @Nonnull
+  private FrameStage createStage(@Nonnull TrainStep step, @Nullable String key) throws IOException {
+    FrameStage stage = createUntappedStage(step);
+    StageCache.Writer writer = createWriter(key);
+    Consumer<Frame> output = output(step, writer);
+
+    return new MeteredStage(metrics, step.getFolderName(), new FrameStage() {
+      @Override
+      public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+        stage.process(frame, output.andThen(downstream));
+      }
+
+      @Override
+      public void finish(@Nonnull Consumer<Frame> downstream) {
+        stage.finish(output.andThen(downstream));
+
+        if (writer != null) {
+          writer.commit();
+        }
+
+        complete(step);
+      }
+    });
+  }
+
+  @Nullable
+  private StageCache.Writer createWriter(@Nullable String key) {
+    if (cache == null || key == null) {
+      return null;
+    }
+
+    return cache.write(key);
+  }
+
+  /**
+   * Gets the consumer tapping the output of the step and recording it with the writer.
+   */
+  @Nonnull
+  private Consumer<Frame> output(@Nonnull TrainStep step, @Nullable StageCache.Writer writer) {
+    Consumer<Frame> tap = tap(step);
+
+    if (writer == null) {
+      return tap;
+    }
+
+    return tap.andThen(writer::write);
+  }
+
+  @Nonnull
+  private FrameStage createUntappedStage(@Nonnull TrainStep step) throws IOException {
+    switch (step) {
+      case GEOMETRY:
+        return FusedGeometry.stage(CalibrationRegistry.load(calibrationJsonFilename), warmup);
+      case STITCH:
+        return TrainStitcher.stage();
+      case SPLIT:
+        return SplitTrain.stage();
+      default:
+        throw new IllegalArgumentException("Step " + step + " is not a frame stage");
+    }
+  }
+
+  /**
+   * Records the step as complete in the manifest, together with its output on disk if it's tapped.
+   */
+  private void complete(@Nonnull TrainStep step) {
+    if (manifest == null) {
+      return;
+    }
+
+    String folder = tappedSteps.contains(step) ? getFolder(step) : null;
+    manifest.complete(step.getNumber(), describe(step), folder);
+  }
+
+  /**
+   * Gets the consumer writing the frames of the step to its folder if the step is tapped.
+   */
+  @Nonnull
+  private Consumer<Frame> tap(@Nonnull TrainStep step) {
+    if (!tappedSteps.contains(step)) {
+      return frame -> {
+        // not tapped
+      };
+    }
+
+    String folder = getFolder(step);
+    emptyFolder(folder);
+
+    return frame -> saveMat(folder, frame.getMat(), frame.getIndex());
+  }
+
+  /**
+   * Reads the frames a previous run has tapped for the step.
+   */
+  private void load(@Nonnull TrainStep step, @Nonnull Consumer<Frame> downstream) {
+    String folder = getFolder(step);
+
+    if (!new File(folder).exists()) {
+      throw new IllegalStateException("The output of step " + step.getNumber() + " is not present in " + folder);
+    }
+
+    List<Path> files = getFiles(folder, "**.jpg");
+
+    for (int i = 0; i < files.size(); i++) {
+      downstream.accept(new Frame(i, readMat(files.get(i))));
+    }
+  }
+
+  @Nonnull
+  private String getFolder(@Nonnull TrainStep step) {
+    return new File(outputFolder, step.getFolderName()).getPath();
+  }
+
+  @Nonnull
+  public Set<TrainStep> getTappedSteps() {
+    return tappedSteps;
+  }
+
+  /**
+   * Sets the steps whose output is written to disk.
+   */
+  public void setTappedSteps(@Nonnull Set<TrainStep> tappedSteps) {
+    this.tappedSteps = tappedSteps;
+  }
+
+  public boolean isPipelined() {
+    return pipelined;
+  }
+
+  /**
+   * Runs every stage on its own worker connected with bounded queues instead of one stage after the other.
+   */
+  public void setPipelined(boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
+  public int getQueueCapacity() {
+    return queueCapacity;
+  }
+
+  /**
+   * Sets the number of frames that may wait in front of a stage in pipelined mode.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    this.queueCapacity = queueCapacity;
+  }
+
+  public int getWarmup() {
+    return warmup;
+  }
+
+  /**
+   * Sets the number of frames with motion the crop box and the perspective transform take their median from before
+   * they are fixed, see {@link FusedGeometry}. 0 takes the median of all frames, which holds every frame with motion
+   * in memory until the end.
+   */
+  public void setWarmup(int warmup) {
+    this.warmup = warmup;
+  }
+
+  @Nonnull
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Sets the registry the metrics of the steps are recorded in, e.g. to report them together with other steps of a
+   * run. By default, every pipeline has its own.
+   */
+  public void setMetrics(@Nonnull Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  @Nullable
+  public StageCache getCache() {
+    return cache;
+  }
+
+  /**
+   * Sets the cache the outputs of the steps are stored in and reused from. {@code null} disables caching.
+   */
+  public void setCache(@Nullable StageCache cache) {
+    this.cache = cache;
+  }
+
+  @Nullable
+  public RunManifest getManifest() {
+    return manifest;
+  }
+
+  /**
+   * Sets the manifest the completed steps are recorded in. {@code null} disables recording.
+   */
+  public void setManifest(@Nullable RunManifest manifest) {
+    this.manifest = manifest;
+  }
+}
@@ -0,0 +1,51 @@
+package ch.sebastianhaeni.thermotrains.pipeline;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The steps of the {@link TrainPipeline}. The number matches the step number of the
+ * {@link ch.sebastianhaeni.thermotrains.PipelineRunner}. Undistorting, straightening, cropping and rectifying, the
+ * steps 4 to 7, are fused into the single step {@link #GEOMETRY} that remaps every frame only once, so there's no
+ * output of the steps 4 to 6.
+ */
+public enum TrainStep {
+  EXTRACT(3, "3-distorted"),
+  GEOMETRY(7, "7-rectified"),
+  STITCH(8, "8-stitched"),
+  SPLIT(9, "9-final");
+
+  private final int number;
+  @Nonnull
+  private final String folderName;
+
+  TrainStep(int number, @Nonnull String folderName) {
+    this.number = number;
+    this.folderName = folderName;
+  }
+
+  /**
+   * Gets the step with the given number.
+   */
+  @Nonnull
+  public static TrainStep of(int number) {
+    for (TrainStep step : values()) {
+      if (step.number == number) {
+        return step;
+      }
+    }
+
+    throw new IllegalArgumentException("There is no train step " + number);
+  }
+
+  public int getNumber() {
+    return number;
+  }
+
+  /**
+   * Name of the folder the output of this step is written to.
+   */
+  @Nonnull
+  public String getFolderName() {
+    return folderName;
+  }
+}
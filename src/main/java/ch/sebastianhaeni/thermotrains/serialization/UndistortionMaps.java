@@ -0,0 +1,73 @@
+package ch.sebastianhaeni.thermotrains.serialization;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+
+import javax.annotation.Nonnull;
+
+/**
+ * This class represents a camera calibration together with everything derived from it to undistort the frames: the
+ * optimal new camera matrix, the ROI of the valid pixels and the fixed point undistortion maps cut to the ROI. To store
+ * it in binary, you can use {@link UndistortionMapsFile}.
+ */
+public class UndistortionMaps {
+  @Nonnull
+  private final Calibration calibration;
+  @Nonnull
+  private final Mat optimalCameraMatrix;
+  @Nonnull
+  private final Rect roi;
+  @Nonnull
+  private final Mat map1;
+  @Nonnull
+  private final Mat map2;
+
+  public UndistortionMaps(
+    @Nonnull Calibration calibration,
+    @Nonnull Mat optimalCameraMatrix,
+    @Nonnull Rect roi,
+    @Nonnull Mat map1,
+    @Nonnull Mat map2) {
+
+    this.calibration = calibration;
+    this.optimalCameraMatrix = optimalCameraMatrix;
+    this.roi = roi;
+    this.map1 = map1;
+    this.map2 = map2;
+  }
+
+  @Nonnull
+  public Calibration getCalibration() {
+    return calibration;
+  }
+
+  @Nonnull
+  public Mat getOptimalCameraMatrix() {
+    return optimalCameraMatrix;
+  }
+
+  /**
+   * Gets the ROI of the valid pixels in the undistorted image.
+   */
+  @Nonnull
+  public Rect getRoi() {
+    return roi;
+  }
+
+  /**
+   * Gets the first map of type {@link org.opencv.core.CvType#CV_16SC2} from the undistorted pixels in the ROI to the
+   * distorted pixels, see {@link org.opencv.imgproc.Imgproc#remap}.
+   */
+  @Nonnull
+  public Mat getMap1() {
+    return map1;
+  }
+
+  /**
+   * Gets the second map of type {@link org.opencv.core.CvType#CV_16UC1} holding the interpolation coefficients.
+   */
+  @Nonnull
+  public Mat getMap2() {
+    return map2;
+  }
+}
@@ -0,0 +1,228 @@
+package ch.sebastianhaeni.thermotrains.serialization;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+
+/**
+ * Stores {@link UndistortionMaps} in a binary file that is read memory mapped. The file holds a header followed by the
+ * matrices, every matrix as its rows, columns and type followed by its raw data, all in little endian.
+ */
+public final class UndistortionMapsFile {
+
+  private static final int MAGIC = 0x54544d50;
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 8 * Integer.BYTES;
+  private static final int MAT_HEADER_BYTES = 3 * Integer.BYTES;
+
+  private UndistortionMapsFile() {
+    // nop
+  }
+
+  /**
+   * Writes the maps to the file. The file is replaced atomically, so a concurrent reader never sees half of it.
+   */
+  public static void write(@Nonnull Path file, @Nonnull UndistortionMaps maps) throws IOException {
+    Calibration calibration = maps.getCalibration();
+    List<Mat> mats = new ArrayList<>(Arrays.asList(
+      calibration.getCameraMatrix(),
+      calibration.getDistCoeffs(),
+      maps.getOptimalCameraMatrix(),
+      maps.getMap1(),
+      maps.getMap2()));
+    mats.addAll(calibration.getRvecs());
+    mats.addAll(calibration.getTvecs());
+
+    // the header and the counts of the rotation and translation vectors
+    int size = HEADER_BYTES + 2 * Integer.BYTES;
+    for (Mat mat : mats) {
+      size += MAT_HEADER_BYTES + (int) (mat.total() * mat.elemSize());
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(MAGIC);
+    buffer.putInt(VERSION);
+    buffer.putInt((int) calibration.getImageSize().width);
+    buffer.putInt((int) calibration.getImageSize().height);
+    buffer.putInt(maps.getRoi().x);
+    buffer.putInt(maps.getRoi().y);
+    buffer.putInt(maps.getRoi().width);
+    buffer.putInt(maps.getRoi().height);
+
+    putMat(buffer, calibration.getCameraMatrix());
+    putMat(buffer, calibration.getDistCoeffs());
+    putMat(buffer, maps.getOptimalCameraMatrix());
+    putMat(buffer, maps.getMap1());
+    putMat(buffer, maps.getMap2());
+    putMats(buffer, calibration.getRvecs());
+    putMats(buffer, calibration.getTvecs());
+
+    Path tmp = Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, buffer.array());
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Reads the maps from the memory mapped file.
+   */
+  @Nonnull
+  public static UndistortionMaps read(@Nonnull Path file) throws IOException {
+    MappedByteBuffer mapped;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+    if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+      throw new IOException(file + " is not an undistortion maps file of version " + VERSION);
+    }
+
+    Size imageSize = new Size(buffer.getInt(), buffer.getInt());
+    Rect roi = new Rect(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+
+    Mat cameraMatrix = getMat(buffer);
+    Mat distCoeffs = getMat(buffer);
+    Mat optimalCameraMatrix = getMat(buffer);
+    Mat map1 = getMat(buffer);
+    Mat map2 = getMat(buffer);
+    List<Mat> rvecs = getMats(buffer);
+    List<Mat> tvecs = getMats(buffer);
+
+    Calibration calibration = new Calibration(cameraMatrix, distCoeffs, imageSize, rvecs, tvecs);
+
+    return new UndistortionMaps(calibration, optimalCameraMatrix, roi, map1, map2);
+  }
+
+  private static void putMats(@Nonnull ByteBuffer buffer, @Nonnull List<Mat> mats) {
+    buffer.putInt(mats.size());
+    mats.forEach(mat -> putMat(buffer, mat));
+  }
+
+  @Nonnull
+  private static List<Mat> getMats(@Nonnull ByteBuffer buffer) {
+    int count = buffer.getInt();
+    List<Mat> mats = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      mats.add(getMat(buffer));
+    }
+
+    return mats;
+  }
+
+  private static void putMat(@Nonnull ByteBuffer buffer, @Nonnull Mat mat) {
+    buffer.putInt(mat.rows());
+    buffer.putInt(mat.cols());
+    buffer.putInt(mat.type());
+
+    // the data of a view has gaps
+    Mat continuous = mat.isContinuous() ? mat : mat.clone();
+    int length = (int) (continuous.total() * continuous.channels());
+
+    switch (CvType.depth(mat.type())) {
+      case CvType.CV_8U:
+      case CvType.CV_8S:
+        byte[] bytes = new byte[length];
+        continuous.get(0, 0, bytes);
+        buffer.duplicate().put(bytes);
+        break;
+      case CvType.CV_16U:
+      case CvType.CV_16S:
+        short[] shorts = new short[length];
+        continuous.get(0, 0, shorts);
+        buffer.asShortBuffer().put(shorts);
+        break;
+      case CvType.CV_32S:
+        int[] ints = new int[length];
+        continuous.get(0, 0, ints);
+        buffer.asIntBuffer().put(ints);
+        break;
+      case CvType.CV_32F:
+        float[] floats = new float[length];
+        continuous.get(0, 0, floats);
+        buffer.asFloatBuffer().put(floats);
+        break;
+      case CvType.CV_64F:
+        double[] doubles = new double[length];
+        continuous.get(0, 0, doubles);
+        buffer.asDoubleBuffer().put(doubles);
+        break;
+      default:
+        throw new IllegalArgumentException("Unsupported type " + CvType.typeToString(mat.type()));
+    }
+
+    buffer.position(buffer.position() + (int) (continuous.total() * continuous.elemSize()));
+
+    if (continuous != mat) {
+      continuous.release();
+    }
+  }
+
+  @Nonnull
+  private static Mat getMat(@Nonnull ByteBuffer buffer) {
+    int rows = buffer.getInt();
+    int cols = buffer.getInt();
+    int type = buffer.getInt();
+
+    Mat mat = new Mat(rows, cols, type);
+    int length = (int) (mat.total() * mat.channels());
+
+    switch (CvType.depth(type)) {
+      case CvType.CV_8U:
+      case CvType.CV_8S:
+        byte[] bytes = new byte[length];
+        buffer.duplicate().get(bytes);
+        mat.put(0, 0, bytes);
+        break;
+      case CvType.CV_16U:
+      case CvType.CV_16S:
+        short[] shorts = new short[length];
+        buffer.asShortBuffer().get(shorts);
+        mat.put(0, 0, shorts);
+        break;
+      case CvType.CV_32S:
+        int[] ints = new int[length];
+        buffer.asIntBuffer().get(ints);
+        mat.put(0, 0, ints);
+        break;
+      case CvType.CV_32F:
+        float[] floats = new float[length];
+        buffer.asFloatBuffer().get(floats);
+        mat.put(0, 0, floats);
+        break;
+      case CvType.CV_64F:
+        double[] doubles = new double[length];
+        buffer.asDoubleBuffer().get(doubles);
+        mat.put(0, 0, doubles);
+        break;
+      default:
+        mat.release();
+        throw new IllegalArgumentException("Unsupported type " + CvType.typeToString(type));
+    }
+
+    buffer.position(buffer.position() + (int) (mat.total() * mat.elemSize()));
+
+    return mat;
+  }
+}
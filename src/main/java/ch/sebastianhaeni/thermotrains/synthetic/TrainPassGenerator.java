@@ -0,0 +1,466 @@
+package ch.sebastianhaeni.thermotrains.synthetic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import ch.sebastianhaeni.thermotrains.serialization.Calibration;
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoWriter;
+
+import static org.opencv.core.Core.addWeighted;
+import static org.opencv.imgproc.Imgproc.INTER_LINEAR;
+import static org.opencv.imgproc.Imgproc.getRotationMatrix2D;
+import static org.opencv.imgproc.Imgproc.line;
+import static org.opencv.imgproc.Imgproc.rectangle;
+import static org.opencv.imgproc.Imgproc.remap;
+import static org.opencv.imgproc.Imgproc.undistortPoints;
+import static org.opencv.imgproc.Imgproc.warpAffine;
+
+/**
+ * Renders a synthetic pass of a train in front of the camera. The train is made of cars with windows and gaps between
+ * them, it drives along two tracks in front of a dark background. The pass starts and ends with empty track. The
+ * frames can be tilted, distorted with the lens of a {@link Calibration} and covered in thermal noise.
+ * <p>
+ * All randomness is seeded, so the same parameters always render the same video.
+ */
+public final class TrainPassGenerator {
+
+  private static final Logger LOG = LogManager.getLogger(TrainPassGenerator.class);
+  private static final int NOISE_FRAMES = 8;
+  private static final double NOISE_OFFSET = 128;
+  private static final Scalar BACKGROUND_COLOR = new Scalar(25, 25, 25);
+  private static final Scalar TRACK_COLOR = new Scalar(220, 220, 220);
+  private static final Scalar WINDOW_COLOR = new Scalar(60, 60, 60);
+  private static final int TRACK_THICKNESS = 6;
+
+  private int width = 1920;
+  private int height = 1080;
+  private int cars = 4;
+  private int carLength = 2400;
+  private int carGap = 80;
+  private int speed = 40;
+  @Nonnull
+  private Direction direction = Direction.FORWARD;
+  private int emptyFrames = 30;
+  private double tilt;
+  private double noise = 8;
+  private double fps = 30;
+  private long seed = 42;
+  @Nullable
+  private Calibration calibration;
+
+  /**
+   * Writes the pass to the video file.
+   */
+  public void write(@Nonnull String videoFilename) {
+    VideoWriter writer = new VideoWriter(
+      videoFilename,
+      VideoWriter.fourcc('m', 'p', '4', 'v'),
+      fps,
+      new Size(width, height),
+      true);
+
+    if (!writer.isOpened()) {
+      throw new IllegalStateException("Cannot open " + videoFilename + " for writing");
+    }
+
+    try {
+      render(writer::write);
+    } finally {
+      writer.release();
+    }
+
+    LOG.info("saved {} frames of {} cars driving {} at {} px/frame to {}",
+      getFrameCount(), cars, direction, speed, videoFilename);
+  }
+
+  /**
+   * Renders all frames of the pass in order and hands them to the consumer. The frame is reused for the next one, so
+   * the consumer has to copy it if it wants to keep it.
+   */
+  public void render(@Nonnull Consumer<Mat> consumer) {
+    List<Mat> mats = new ArrayList<>();
+
+    try {
+      Mat background = track(mats, renderScene(width));
+      Mat train = track(mats, renderTrain());
+      Mat trainMask = track(mats, renderTrainMask());
+      List<Mat> noiseFrames = renderNoise();
+      mats.addAll(noiseFrames);
+      Mat distortionMap = calibration == null ? null : track(mats, createDistortionMap(calibration));
+      Mat rotation = track(mats, getRotationMatrix2D(new Point(width / 2, height / 2), tilt, 1.0));
+      Mat noMap = track(mats, new Mat());
+
+      Mat frame = track(mats, new Mat());
+      Mat transformed = track(mats, new Mat());
+      int frameCount = getFrameCount();
+
+      for (int i = 0; i < frameCount; i++) {
+        background.copyTo(frame);
+        drawTrain(frame, train, trainMask, getTrainLeft(i));
+
+        if (tilt != 0) {
+          warpAffine(frame, transformed, rotation, frame.size());
+          transformed.copyTo(frame);
+        }
+
+        if (distortionMap != null) {
+          remap(frame, transformed, distortionMap, noMap, INTER_LINEAR);
+          transformed.copyTo(frame);
+        }
+
+        if (noise > 0) {
+          addWeighted(frame, 1, noiseFrames.get(i % NOISE_FRAMES), 1, -NOISE_OFFSET, frame);
+        }
+
+        consumer.accept(frame);
+      }
+    } finally {
+      // a pass at the default size holds about 100 MB of native memory
+      mats.forEach(Mat::release);
+    }
+  }
+
+  @Nonnull
+  private static Mat track(@Nonnull List<Mat> mats, @Nonnull Mat mat) {
+    mats.add(mat);
+    return mat;
+  }
+
+  /**
+   * Renders the side view of the whole train in front of the scene.
+   */
+  @Nonnull
+  public Mat renderTrain() {
+    Mat train = renderScene(getTrainLength());
+    Scalar[] colors = new Scalar[cars];
+    Random random = new Random(seed);
+
+    for (int car = 0; car < cars; car++) {
+      int shade = 150 + random.nextInt(80);
+      colors[car] = new Scalar(shade, shade, shade);
+    }
+
+    forEachCar((left, car) -> {
+      rectangle(train, new Point(left, getTrainTop()), new Point(left + carLength, getTrainBottom()), colors[car], -1);
+
+      int windowSize = (getTrainBottom() - getTrainTop()) / 4;
+      for (int window = left + windowSize; window + windowSize < left + carLength; window += windowSize * 2) {
+        rectangle(train,
+          new Point(window, getTrainTop() + windowSize / 2),
+          new Point(window + windowSize, getTrainTop() + windowSize * 3 / 2),
+          WINDOW_COLOR, -1);
+      }
+    });
+
+    return train;
+  }
+
+  /**
+   * Renders the background with the tracks in it.
+   */
+  @Nonnull
+  public Mat renderScene(int sceneWidth) {
+    Mat scene = new Mat(height, sceneWidth, CvType.CV_8UC3, BACKGROUND_COLOR);
+
+    for (int y : new int[] { height * 81 / 100, height * 89 / 100 }) {
+      line(scene, new Point(0, y), new Point(sceneWidth, y), TRACK_COLOR, TRACK_THICKNESS);
+    }
+
+    return scene;
+  }
+
+  /**
+   * Gets the number of frames of the pass, including the empty track before and after the train.
+   */
+  public int getFrameCount() {
+    int distance = width + getTrainLength();
+
+    return (distance + speed - 1) / speed + 2 * emptyFrames;
+  }
+
+  /**
+   * Gets the length of the train including the gaps in front and after it.
+   */
+  public int getTrainLength() {
+    return cars * (carLength + carGap) + carGap;
+  }
+
+  /**
+   * Gets the position of the left end of the train in the frame.
+   */
+  private int getTrainLeft(int frameIndex) {
+    int distance = (frameIndex - emptyFrames) * speed;
+
+    if (direction == Direction.FORWARD) {
+      // travelling from right to left
+      return width - distance;
+    }
+
+    return distance - getTrainLength();
+  }
+
+  private int getTrainTop() {
+    return height * 24 / 100;
+  }
+
+  private int getTrainBottom() {
+    return height * 76 / 100;
+  }
+
+  /**
+   * Copies the part of the train that is in the frame, without the background between the cars.
+   */
+  private void drawTrain(@Nonnull Mat frame, @Nonnull Mat train, @Nonnull Mat trainMask, int left) {
+    int start = Math.max(0, left);
+    int end = Math.min(width, left + getTrainLength());
+
+    if (start >= end) {
+      return;
+    }
+
+    Rect source = new Rect(start - left, 0, end - start, height);
+    Rect destination = new Rect(start, 0, end - start, height);
+
+    Mat trainPart = new Mat(train, source);
+    Mat framePart = new Mat(frame, destination);
+    Mat maskPart = new Mat(trainMask, source);
+
+    trainPart.copyTo(framePart, maskPart);
+
+    trainPart.release();
+    framePart.release();
+    maskPart.release();
+  }
+
+  @Nonnull
+  private Mat renderTrainMask() {
+    Mat mask = new Mat(height, getTrainLength(), CvType.CV_8UC1, new Scalar(0));
+
+    forEachCar((left, car) -> rectangle(mask,
+      new Point(left, getTrainTop()),
+      new Point(left + carLength, getTrainBottom()),
+      new Scalar(255), -1));
+
+    return mask;
+  }
+
+  private void forEachCar(@Nonnull CarConsumer consumer) {
+    for (int car = 0; car < cars; car++) {
+      consumer.accept(carGap + car * (carLength + carGap), car);
+    }
+  }
+
+  /**
+   * Renders a few frames of gaussian noise around {@link #NOISE_OFFSET} that are cycled through.
+   */
+  @Nonnull
+  private List<Mat> renderNoise() {
+    Random random = new Random(seed);
+    List<Mat> frames = new ArrayList<>();
+    byte[] data = new byte[width * height * 3];
+
+    for (int i = 0; i < NOISE_FRAMES; i++) {
+      for (int j = 0; j < data.length; j++) {
+        double value = NOISE_OFFSET + random.nextGaussian() * noise;
+        data[j] = (byte) Math.max(0, Math.min(255, Math.round(value)));
+      }
+
+      Mat mat = new Mat(height, width, CvType.CV_8UC3);
+      mat.put(0, 0, data);
+      frames.add(mat);
+    }
+
+    return frames;
+  }
+
+  /**
+   * Creates the map from every pixel of the distorted frame to its position in the ideal frame.
+   */
+  @Nonnull
+  private Mat createDistortionMap(@Nonnull Calibration calibration) {
+    Point[] pixels = new Point[width * height];
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        pixels[y * width + x] = new Point(x, y);
+      }
+    }
+
+    MatOfPoint2f distorted = new MatOfPoint2f(pixels);
+    MatOfPoint2f ideal = new MatOfPoint2f();
+    Mat noRectification = new Mat();
+    undistortPoints(
+      distorted,
+      ideal,
+      calibration.getCameraMatrix(),
+      calibration.getDistCoeffs(),
+      noRectification,
+      calibration.getCameraMatrix());
+
+    // the map shares the data of the points
+    Mat map = ideal.reshape(2, height);
+    distorted.release();
+    ideal.release();
+    noRectification.release();
+
+    return map;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  /**
+   * Sets the frame size. Setting a calibration overrides it with the size of the calibrated camera.
+   */
+  public void setSize(int width, int height) {
+    this.width = width;
+    this.height = height;
+  }
+
+  public int getCars() {
+    return cars;
+  }
+
+  public void setCars(int cars) {
+    this.cars = cars;
+  }
+
+  public int getCarLength() {
+    return carLength;
+  }
+
+  /**
+   * Sets the length of a car in pixels.
+   */
+  public void setCarLength(int carLength) {
+    this.carLength = carLength;
+  }
+
+  public int getCarGap() {
+    return carGap;
+  }
+
+  /**
+   * Sets the gap between two cars in pixels.
+   */
+  public void setCarGap(int carGap) {
+    this.carGap = carGap;
+  }
+
+  public int getSpeed() {
+    return speed;
+  }
+
+  /**
+   * Sets the speed of the train in pixels per frame.
+   */
+  public void setSpeed(int speed) {
+    if (speed < 1) {
+      throw new IllegalArgumentException("The speed must be at least 1 pixel per frame");
+    }
+
+    this.speed = speed;
+  }
+
+  @Nonnull
+  public Direction getDirection() {
+    return direction;
+  }
+
+  public void setDirection(@Nonnull Direction direction) {
+    this.direction = direction;
+  }
+
+  public int getEmptyFrames() {
+    return emptyFrames;
+  }
+
+  /**
+   * Sets the number of frames with just the empty track before and after the train.
+   */
+  public void setEmptyFrames(int emptyFrames) {
+    this.emptyFrames = emptyFrames;
+  }
+
+  public double getTilt() {
+    return tilt;
+  }
+
+  /**
+   * Sets the angle in degrees the camera is tilted by.
+   */
+  public void setTilt(double tilt) {
+    this.tilt = tilt;
+  }
+
+  public double getNoise() {
+    return noise;
+  }
+
+  /**
+   * Sets the standard deviation of the thermal noise added to every pixel. 0 disables the noise.
+   */
+  public void setNoise(double noise) {
+    this.noise = noise;
+  }
+
+  public double getFps() {
+    return fps;
+  }
+
+  public void setFps(double fps) {
+    this.fps = fps;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Sets the seed of the car colors and the noise.
+   */
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  @Nullable
+  public Calibration getCalibration() {
+    return calibration;
+  }
+
+  /**
+   * Sets the calibration whose lens distortion is applied to the frames. {@code null} renders undistorted frames.
+   */
+  public void setCalibration(@Nullable Calibration calibration) {
+    this.calibration = calibration;
+
+    if (calibration != null) {
+      setSize((int) calibration.getImageSize().width, (int) calibration.getImageSize().height);
+    }
+  }
+
+  @FunctionalInterface
+  private interface CarConsumer {
+    void accept(int left, int car);
+  }
+}
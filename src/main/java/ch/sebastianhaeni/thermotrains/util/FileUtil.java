@@ -12,11 +12,14 @@ import java.util.stream.Collectors;
 
 import javax.annotation.Nonnull;
 
+import ch.sebastianhaeni.thermotrains.metrics.CodecEvent;
+import ch.sebastianhaeni.thermotrains.metrics.Metrics;
 import org.apache.commons.lang3.tuple.ImmutablePair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.opencv.core.Mat;
 
+import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgcodecs.Imgcodecs.imwrite;
 
 /**
@@ -63,7 +66,7 @@ public final class FileUtil {
   public static void saveMat(@Nonnull String outputFolder, @Nonnull Mat mat, int index) {
     String filename = String.format("%04d.jpg", index);
     File file = getFile(outputFolder, filename);
-    imwrite(file.getAbsolutePath(), mat);
+    writeMat(file, mat);
 
     LOG.info("saved {}", file.getAbsoluteFile());
   }
@@ -73,20 +76,55 @@ public final class FileUtil {
    */
   public static void saveMat(@Nonnull String outputFolder, @Nonnull Mat mat, @Nonnull String filename) {
     File file = getFile(outputFolder, filename + ".jpg");
-    imwrite(file.getAbsolutePath(), mat);
+    writeMat(file, mat);
 
     LOG.info("saved {}", file.getAbsoluteFile());
   }
 
   /**
-   * Gets the file reference to the given file. If the folder it should be in, doesn't exist yet, it will be created.
+   * Writes the {@link Mat} to the file, the format is chosen by the extension. The time and bytes are recorded in the
+   * {@link Metrics} and as a {@link CodecEvent}.
+   */
+  public static void writeMat(@Nonnull File file, @Nonnull Mat mat) {
+    CodecEvent event = CodecEvent.start(CodecEvent.ENCODE, file.getPath());
+    long start = System.nanoTime();
+    imwrite(file.getAbsolutePath(), mat);
+
+    long bytes = file.length();
+    Metrics.recordCodec(System.nanoTime() - start, 0, bytes);
+    event.setBytes(bytes);
+    event.commit();
+  }
+
+  /**
+   * Reads the image file into a {@link Mat}. The time and bytes are recorded in the {@link Metrics} and as a
+   * {@link CodecEvent}.
+   */
+  @Nonnull
+  public static Mat readMat(@Nonnull Path file) {
+    CodecEvent event = CodecEvent.start(CodecEvent.DECODE, file.toString());
+    long start = System.nanoTime();
+    Mat mat = imread(file.toString());
+
+    long bytes = file.toFile().length();
+    Metrics.recordCodec(System.nanoTime() - start, bytes, 0);
+    event.setBytes(bytes);
+    event.commit();
+
+    return mat;
+  }
+
+  /**
+   * Gets the file reference to the given file. If the folder it should be in, doesn't exist yet, it will be created
+   * including its parents.
    */
   @Nonnull
   public static File getFile(@Nonnull String outputFolder, @Nonnull String filename) {
     File folder = new File(outputFolder);
 
     if (!folder.exists()) {
-      if (!folder.mkdir()) {
+      // another thread might be creating the same folder
+      if (!folder.mkdirs() && !folder.isDirectory()) {
         throw new IllegalStateException("Could not create dir " + outputFolder);
       }
 
@@ -0,0 +1,161 @@
+package ch.sebastianhaeni.thermotrains.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.annotation.Nonnull;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Fixed number of preallocated frame buffers of the camera resolution, shared between the decoder and the stages. The
+ * decoder acquires a buffer and decodes into it, the stage done with the frame releases it as usual with
+ * {@link Mat#release()}, which puts the buffer back into the ring instead of freeing it. So decoding a frame doesn't
+ * allocate any native memory.
+ * <p>
+ * A frame may only be released once nothing refers to it anymore. A view on it, like a cropped frame, would see the
+ * next frame decoded into the buffer. The stages release their input only after copying it, e.g. when undistorting.
+ * <p>
+ * If all buffers are in use, e.g. while frames are held back to find the direction, a plain buffer is allocated instead
+ * of waiting, so a full ring never stalls the pipeline. The occupancy stats tell how many buffers a camera and pipeline
+ * need.
+ */
+public final class FrameRing {
+
+  public static final int DEFAULT_CAPACITY = 16;
+
+  private final int capacity;
+  @Nonnull
+  private final Deque<RingMat> free = new ArrayDeque<>();
+  private boolean closed;
+  private int inUse;
+  private int peakInUse;
+  private long acquired;
+  private long overflows;
+
+  /**
+   * Preallocates the buffers.
+   *
+   * @param capacity number of buffers in the ring
+   * @param size resolution of the camera
+   * @param type type of the decoded frames, e.g. {@link org.opencv.core.CvType#CV_8UC3}
+   */
+  public FrameRing(int capacity, @Nonnull Size size, int type) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("The capacity must be at least 1");
+    }
+
+    this.capacity = capacity;
+
+    for (int i = 0; i < capacity; i++) {
+      free.push(new RingMat(this, (int) size.height, (int) size.width, type));
+    }
+  }
+
+  /**
+   * Gets a free buffer of the ring, or a new one if all are in use. Its content is undefined.
+   */
+  @Nonnull
+  public synchronized Mat acquire() {
+    acquired++;
+
+    RingMat mat = free.poll();
+    if (mat == null) {
+      overflows++;
+      return new Mat();
+    }
+
+    mat.inRing = false;
+    inUse++;
+    peakInUse = Math.max(peakInUse, inUse);
+
+    return mat;
+  }
+
+  private synchronized void giveBack(@Nonnull RingMat mat) {
+    if (mat.inRing) {
+      // released twice
+      return;
+    }
+
+    mat.inRing = true;
+    inUse--;
+
+    if (closed) {
+      mat.free();
+    } else {
+      free.push(mat);
+    }
+  }
+
+  /**
+   * Frees the free buffers. The ones still in use are freed when they are released.
+   */
+  public synchronized void close() {
+    closed = true;
+    free.forEach(RingMat::free);
+    free.clear();
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * Gets the number of buffers of the ring currently in use.
+   */
+  public synchronized int getInUse() {
+    return inUse;
+  }
+
+  /**
+   * Gets the highest number of buffers of the ring in use at the same time.
+   */
+  public synchronized int getPeakInUse() {
+    return peakInUse;
+  }
+
+  /**
+   * Gets the number of buffers acquired, from the ring or not.
+   */
+  public synchronized long getAcquired() {
+    return acquired;
+  }
+
+  /**
+   * Gets the number of buffers that had to be allocated because the ring was empty.
+   */
+  public synchronized long getOverflows() {
+    return overflows;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("%d of %d buffers in use at most, %d of %d frames allocated beyond",
+      peakInUse, capacity, overflows, acquired);
+  }
+
+  /**
+   * Buffer of the ring, releasing it hands it back to the ring.
+   */
+  private static final class RingMat extends Mat {
+    @Nonnull
+    private final FrameRing ring;
+    private boolean inRing = true;
+
+    RingMat(@Nonnull FrameRing ring, int rows, int cols, int type) {
+      super(rows, cols, type);
+      this.ring = ring;
+    }
+
+    @Override
+    public void release() {
+      ring.giveBack(this);
+    }
+
+    void free() {
+      super.release();
+    }
+  }
+}
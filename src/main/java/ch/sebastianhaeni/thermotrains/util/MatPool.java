@@ -0,0 +1,215 @@
+package ch.sebastianhaeni.thermotrains.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nonnull;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Pool of native {@link Mat} buffers keyed by size and type. Temporaries of the same size and type are needed for every
+ * frame, taking them from the pool saves the native allocation. A released buffer that doesn't fit into the pool is
+ * freed right away instead of waiting for the finalizer, so the native memory stays bounded.
+ * <p>
+ * The pool keeps at most {@code maxPerKey} free buffers of every size and type and at most {@code maxBytes} in total.
+ * When a released buffer would exceed the total, the buffers of the size and type used least recently are freed first,
+ * so sizes that aren't needed anymore, e.g. those of a video processed before, don't pile up in the shared pool.
+ * <p>
+ * Only buffers that nobody else refers to may be released to the pool, e.g. temporaries of a {@link MatScope}. A
+ * buffer with a view on it, like a cropped frame handed downstream, would be overwritten by its next user.
+ */
+public final class MatPool {
+
+  private static final int DEFAULT_MAX_PER_KEY = 8;
+  private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+  private static final MatPool SHARED = new MatPool(DEFAULT_MAX_PER_KEY, DEFAULT_MAX_BYTES);
+
+  private final int maxPerKey;
+  private final long maxBytes;
+  // in access order, the size and type used least recently comes first
+  @Nonnull
+  private final Map<Key, Deque<Mat>> buffers = new LinkedHashMap<>(16, .75f, true);
+  private long pooledBytes;
+  private long allocated;
+  private long reused;
+
+  /**
+   * @param maxPerKey maximum number of free buffers kept for every size and type
+   */
+  public MatPool(int maxPerKey) {
+    this(maxPerKey, DEFAULT_MAX_BYTES);
+  }
+
+  /**
+   * @param maxPerKey maximum number of free buffers kept for every size and type
+   * @param maxBytes  maximum number of bytes of all free buffers together
+   */
+  public MatPool(int maxPerKey, long maxBytes) {
+    this.maxPerKey = maxPerKey;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Gets the pool shared by all stages.
+   */
+  @Nonnull
+  public static MatPool shared() {
+    return SHARED;
+  }
+
+  /**
+   * Gets a buffer of the size and type. Its content is undefined.
+   */
+  @Nonnull
+  public Mat acquire(@Nonnull Size size, int type) {
+    return acquire((int) size.height, (int) size.width, type);
+  }
+
+  /**
+   * Gets a buffer of the size and type. Its content is undefined.
+   */
+  @Nonnull
+  public Mat acquire(int rows, int cols, int type) {
+    synchronized (buffers) {
+      Deque<Mat> free = buffers.get(new Key(rows, cols, type));
+
+      if (free != null && !free.isEmpty()) {
+        Mat mat = free.pop();
+        pooledBytes -= getBytes(mat);
+        reused++;
+        return mat;
+      }
+
+      allocated++;
+    }
+
+    return new Mat(rows, cols, type);
+  }
+
+  /**
+   * Hands the buffer back to the pool. Views, empty buffers and subclasses like {@code MatOfPoint} aren't pooled but
+   * freed.
+   */
+  public void release(@Nonnull Mat mat) {
+    if (mat.empty() || mat.isSubmatrix() || !mat.isContinuous() || mat.getClass() != Mat.class) {
+      mat.release();
+      return;
+    }
+
+    long bytes = getBytes(mat);
+
+    synchronized (buffers) {
+      Key key = new Key(mat.rows(), mat.cols(), mat.type());
+      Deque<Mat> free = buffers.get(key);
+
+      if ((free == null || free.size() < maxPerKey) && bytes <= maxBytes) {
+        evict(maxBytes - bytes);
+        buffers.computeIfAbsent(key, k -> new ArrayDeque<>()).push(mat);
+        pooledBytes += bytes;
+        return;
+      }
+    }
+
+    mat.release();
+  }
+
+  /**
+   * Frees the buffers of the sizes and types used least recently until at most the given bytes are pooled. Called
+   * while holding the lock.
+   */
+  private void evict(long bytes) {
+    Iterator<Deque<Mat>> iterator = buffers.values().iterator();
+
+    while (pooledBytes > bytes && iterator.hasNext()) {
+      Deque<Mat> free = iterator.next();
+
+      while (pooledBytes > bytes && !free.isEmpty()) {
+        Mat mat = free.removeLast();
+        pooledBytes -= getBytes(mat);
+        mat.release();
+      }
+
+      if (free.isEmpty()) {
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Frees all pooled buffers.
+   */
+  public void clear() {
+    synchronized (buffers) {
+      buffers.values().forEach(free -> free.forEach(Mat::release));
+      buffers.clear();
+      pooledBytes = 0;
+    }
+  }
+
+  /**
+   * Gets the number of bytes of all free buffers in the pool.
+   */
+  public long getPooledBytes() {
+    synchronized (buffers) {
+      return pooledBytes;
+    }
+  }
+
+  /**
+   * Gets the number of buffers that had to be allocated because there was no free one.
+   */
+  public long getAllocated() {
+    synchronized (buffers) {
+      return allocated;
+    }
+  }
+
+  /**
+   * Gets the number of buffers that were taken from the pool.
+   */
+  public long getReused() {
+    synchronized (buffers) {
+      return reused;
+    }
+  }
+
+  private static long getBytes(@Nonnull Mat mat) {
+    return mat.total() * mat.elemSize();
+  }
+
+  private static final class Key {
+    private final int rows;
+    private final int cols;
+    private final int type;
+
+    Key(int rows, int cols, int type) {
+      this.rows = rows;
+      this.cols = cols;
+      this.type = type;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
+      }
+      if (!(o instanceof Key)) {
+        return false;
+      }
+
+      Key key = (Key) o;
+      return rows == key.rows && cols == key.cols && type == key.type;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(rows, cols, type);
+    }
+  }
+}
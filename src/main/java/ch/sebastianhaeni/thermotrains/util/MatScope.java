@@ -0,0 +1,89 @@
+package ch.sebastianhaeni.thermotrains.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+/**
+ * Owns the temporary {@link Mat}s of a computation and hands them back to the {@link MatPool} when it's closed.
+ * Everything the computation returns has to be taken out of the scope with {@link #keep(Mat)}.
+ * <pre>{@code
+ * try (MatScope scope = new MatScope()) {
+ *   Mat gray = scope.acquire(source.size(), CvType.CV_8UC1);
+ *   cvtColor(source, gray, COLOR_BGR2GRAY);
+ *   ...
+ * }
+ * }</pre>
+ */
+public final class MatScope implements AutoCloseable {
+
+  @Nonnull
+  private final MatPool pool;
+  @Nonnull
+  private final List<Mat> owned = new ArrayList<>();
+
+  public MatScope() {
+    this(MatPool.shared());
+  }
+
+  public MatScope(@Nonnull MatPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Gets a temporary buffer of the size and type from the pool.
+   */
+  @Nonnull
+  public Mat acquire(@Nonnull Size size, int type) {
+    return track(pool.acquire(size, type));
+  }
+
+  /**
+   * Creates an empty temporary, e.g. for an output whose size the OpenCV function decides.
+   */
+  @Nonnull
+  public Mat acquire() {
+    return track(new Mat());
+  }
+
+  /**
+   * Takes ownership of the {@link Mat}, it's released when the scope is closed.
+   */
+  @Nonnull
+  public <T extends Mat> T track(@Nonnull T mat) {
+    owned.add(mat);
+    return mat;
+  }
+
+  /**
+   * Takes ownership of all {@link Mat}s in the list. Only the {@link Mat}s in the list at the time of the call are
+   * tracked, so an output list of an OpenCV function has to be tracked after the call.
+   */
+  @Nonnull
+  public <T extends Mat> List<T> trackAll(@Nonnull List<T> mats) {
+    owned.addAll(mats);
+    return mats;
+  }
+
+  /**
+   * Gives up ownership of the {@link Mat}, e.g. because it's returned. It's not released when the scope is closed.
+   */
+  @Nonnull
+  public <T extends Mat> T keep(@Nonnull T mat) {
+    owned.removeIf(owner -> owner == mat);
+    return mat;
+  }
+
+  @Override
+  public void close() {
+    for (Mat mat : owned) {
+      pool.release(mat);
+    }
+
+    owned.clear();
+  }
+}
@@ -5,9 +5,10 @@ import org.opencv.core.Rect;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 
+import java.nio.file.Paths;
+
 import javax.annotation.Nonnull;
 
-import static org.opencv.imgcodecs.Imgcodecs.imread;
 import static org.opencv.imgproc.Imgproc.blur;
 import static org.opencv.imgproc.Imgproc.cvtColor;
 
@@ -38,8 +39,16 @@ public final class MatUtil {
    */
   @Nonnull
   public static Mat background(@Nonnull String file){
-    Mat background = imread(file);
-    cvtColor(background, background, Imgproc.COLOR_BGR2GRAY);
+    return background(FileUtil.readMat(Paths.get(file)));
+  }
+
+  /**
+   * Prepares the image to be used as a background. The given {@link Mat} is left untouched.
+   */
+  @Nonnull
+  public static Mat background(@Nonnull Mat image) {
+    Mat background = new Mat();
+    cvtColor(image, background, Imgproc.COLOR_BGR2GRAY);
     int kernelSize = 3 * 2;
     blur(background, background, new Size(kernelSize, kernelSize));
 
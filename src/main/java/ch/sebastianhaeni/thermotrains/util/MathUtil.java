@@ -31,6 +31,32 @@ public final class MathUtil {
     return median(numArray, (a, b) -> (a + b) / 2);
   }
 
+  /**
+   * Gets the median of the angles in degrees. The angles are taken in (-180, 180] for the median, so angles on both
+   * sides of 0 don't end up around 180. The median is returned in [0, 360).
+   */
+  public static double medianAngle(@Nonnull Double[] angles) {
+    Double[] signed = Arrays.stream(angles).map(MathUtil::signedAngle).toArray(Double[]::new);
+
+    return unsignedAngle(median(signed));
+  }
+
+  /**
+   * Gets the angle in degrees in (-180, 180].
+   */
+  public static double signedAngle(double angle) {
+    double unsigned = unsignedAngle(angle);
+
+    return unsigned > 180 ? unsigned - 360 : unsigned;
+  }
+
+  /**
+   * Gets the angle in degrees in [0, 360).
+   */
+  public static double unsignedAngle(double angle) {
+    return angle + Math.ceil(-angle / 360) * 360;
+  }
+
   private static <T> T median(@Nonnull T[] numArray, @Nonnull BiFunction<T, T, T> mean) {
     T[] clone = numArray.clone();
     Arrays.sort(clone);
@@ -0,0 +1,44 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import ch.sebastianhaeni.thermotrains.internals.CalibrationRegistry;
+import ch.sebastianhaeni.thermotrains.serialization.UndistortionMaps;
+import ch.sebastianhaeni.thermotrains.serialization.UndistortionMapsFile;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+
+public class CalibrationRegistryTest {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @Test
+  public void testBinaryMatchesJson() throws Exception {
+    Path folder = Files.createTempDirectory("calibration");
+    Files.copy(new File("samples/calibration/flir-calibration.json").toPath(), folder.resolve("flir-calibration.json"));
+
+    UndistortionMaps computed = new CalibrationRegistry(folder).get("flir");
+    Path binary = folder.resolve("flir-calibration.bin");
+    Assert.assertTrue(Files.exists(binary));
+
+    UndistortionMaps mapped = UndistortionMapsFile.read(binary);
+
+    Assert.assertEquals(computed.getRoi(), mapped.getRoi());
+    Assert.assertEquals(computed.getCalibration().getImageSize(), mapped.getCalibration().getImageSize());
+    assertEquals(computed.getCalibration().getCameraMatrix(), mapped.getCalibration().getCameraMatrix());
+    assertEquals(computed.getCalibration().getDistCoeffs(), mapped.getCalibration().getDistCoeffs());
+    assertEquals(computed.getOptimalCameraMatrix(), mapped.getOptimalCameraMatrix());
+    assertEquals(computed.getMap1(), mapped.getMap1());
+    assertEquals(computed.getMap2(), mapped.getMap2());
+  }
+
+  private static void assertEquals(Mat expected, Mat actual) {
+    Assert.assertEquals(expected.size(), actual.size());
+    Assert.assertEquals(expected.type(), actual.type());
+    Assert.assertEquals(0.0, Core.norm(expected, actual, Core.NORM_INF), 0.0);
+  }
+}
@@ -0,0 +1,48 @@
+import ch.sebastianhaeni.thermotrains.internals.DuplicateFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+
+  @Test
+  public void testKeepsEveryNthDuplicate() {
+    DuplicateFilter filter = new DuplicateFilter();
+    float[] fingerprint = bump(40);
+
+    Assert.assertFalse(filter.isDuplicate(fingerprint));
+
+    for (int round = 0; round < 3; round++) {
+      for (int i = 0; i < 25; i++) {
+        Assert.assertTrue(filter.isDuplicate(fingerprint));
+      }
+
+      Assert.assertFalse(filter.isDuplicate(fingerprint));
+    }
+
+    Assert.assertEquals(75, filter.getDropped());
+  }
+
+  @Test
+  public void testKeepsMovedFrames() {
+    DuplicateFilter filter = new DuplicateFilter();
+
+    Assert.assertFalse(filter.isDuplicate(bump(40)));
+    Assert.assertTrue(filter.isDuplicate(bump(41)));
+    Assert.assertFalse(filter.isDuplicate(bump(50)));
+    Assert.assertFalse(filter.isDuplicate(bump(40)));
+    Assert.assertEquals(1, filter.getDropped());
+  }
+
+  /**
+   * Creates the fingerprint of a frame with a bright spot at the column.
+   */
+  private static float[] bump(int column) {
+    float[] fingerprint = new float[160];
+
+    for (int i = 0; i < fingerprint.length; i++) {
+      fingerprint[i] = 100f / (1 + (i - column) * (i - column));
+    }
+
+    return fingerprint;
+  }
+}
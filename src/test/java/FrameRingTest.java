@@ -0,0 +1,58 @@
+import ch.sebastianhaeni.thermotrains.util.FrameRing;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+public class FrameRingTest {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @Test
+  public void testReleasedBufferIsReused() {
+    FrameRing ring = new FrameRing(1, new Size(30, 20), CvType.CV_8UC3);
+
+    Mat mat = ring.acquire();
+    Assert.assertEquals(30, mat.cols());
+    Assert.assertEquals(20, mat.rows());
+
+    mat.release();
+
+    Assert.assertSame(mat, ring.acquire());
+    Assert.assertEquals(0, ring.getOverflows());
+  }
+
+  @Test
+  public void testAllocatesBeyondCapacity() {
+    FrameRing ring = new FrameRing(2, new Size(30, 20), CvType.CV_8UC3);
+
+    Mat first = ring.acquire();
+    ring.acquire();
+    ring.acquire();
+
+    Assert.assertEquals(2, ring.getInUse());
+    Assert.assertEquals(2, ring.getPeakInUse());
+    Assert.assertEquals(1, ring.getOverflows());
+
+    first.release();
+    first.release();
+
+    Assert.assertEquals(1, ring.getInUse());
+    Assert.assertFalse(first.empty());
+  }
+
+  @Test
+  public void testClosedRingFreesReleasedBuffers() {
+    FrameRing ring = new FrameRing(1, new Size(30, 20), CvType.CV_8UC3);
+    Mat mat = ring.acquire();
+
+    ring.close();
+    mat.release();
+
+    Assert.assertTrue(mat.empty());
+  }
+}
@@ -0,0 +1,42 @@
+import ch.sebastianhaeni.thermotrains.internals.FrameSampler;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The shifts are given in pixels of the frames shrunk to 160 columns, so a shift of 1 is 10 pixels in a frame of 1600.
+ */
+public class FrameSamplerTest {
+  private static final int FRAME_WIDTH = 1600;
+
+  @Test
+  public void testKeepsStepWithoutMotion() {
+    FrameSampler sampler = new FrameSampler();
+
+    Assert.assertEquals(8, sampler.advance(0, 1, FRAME_WIDTH));
+    Assert.assertEquals(8, sampler.advance(.5, 1, FRAME_WIDTH));
+    Assert.assertEquals(8, sampler.advance(20, .05, FRAME_WIDTH));
+    Assert.assertEquals(0, sampler.getVelocity(), 0);
+  }
+
+  @Test
+  public void testShrinksStepForFastTrain() {
+    FrameSampler sampler = new FrameSampler();
+
+    // 40 * 10 / 8 = 50 pixels per frame, 20% of the frame are 320 pixels
+    Assert.assertEquals(6, sampler.advance(40, 1, FRAME_WIDTH));
+    Assert.assertEquals(50, sampler.getVelocity(), 1e-9);
+
+    // a backwards shift is the same speed
+    Assert.assertEquals(6, sampler.advance(-30, 1, FRAME_WIDTH));
+  }
+
+  @Test
+  public void testGrowsStepAtMostTwice() {
+    FrameSampler sampler = new FrameSampler();
+
+    Assert.assertEquals(16, sampler.advance(2, 1, FRAME_WIDTH));
+    Assert.assertEquals(32, sampler.advance(2, 1, FRAME_WIDTH));
+    Assert.assertEquals(60, sampler.advance(2, 1, FRAME_WIDTH));
+    Assert.assertEquals(60, sampler.advance(2, 1, FRAME_WIDTH));
+  }
+}
@@ -0,0 +1,78 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import ch.sebastianhaeni.thermotrains.internals.LiveCapture;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.synthetic.TrainPassGenerator;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.Size;
+import org.opencv.videoio.VideoWriter;
+
+public class LiveCaptureTest {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReadsFileWhileItIsWritten() throws Exception {
+    TrainPassGenerator generator = new TrainPassGenerator();
+    generator.setSize(320, 180);
+    generator.setCars(2);
+    generator.setCarLength(300);
+    generator.setSpeed(20);
+    generator.setEmptyFrames(5);
+
+    String filename = new File(folder.getRoot(), "live.avi").getPath();
+
+    // stands in for the camera, writing the frames at about the frame rate
+    VideoWriter writer = new VideoWriter(
+      filename,
+      VideoWriter.fourcc('M', 'J', 'P', 'G'),
+      generator.getFps(),
+      new Size(generator.getWidth(), generator.getHeight()),
+      true);
+    Assert.assertTrue(writer.isOpened());
+
+    CompletableFuture<Void> recording = CompletableFuture.runAsync(() -> {
+      generator.render(frame -> {
+        writer.write(frame);
+        sleep((long) (1000 / generator.getFps()));
+      });
+      writer.release();
+    });
+
+    LiveCapture capture = LiveCapture.file(filename);
+    capture.setIdleTimeout(3000);
+
+    // the test machine may be slow, no frame must be skipped as late
+    capture.setLatencyBudget(Long.MAX_VALUE);
+
+    List<Frame> frames = new ArrayList<>();
+    capture.produce(frames::add);
+    recording.get();
+
+    Assert.assertEquals(generator.getFrameCount(), frames.size());
+    for (int i = 0; i < frames.size(); i++) {
+      Assert.assertEquals(i + 1, frames.get(i).getIndex());
+      Assert.assertEquals(generator.getWidth(), frames.get(i).getMat().width());
+    }
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.sebastianhaeni.thermotrains.util.MatPool;
+import ch.sebastianhaeni.thermotrains.util.MatScope;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+public class MatPoolTest {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @Test
+  public void testReusesBuffersOfSameSizeAndType() {
+    MatPool pool = new MatPool(2);
+
+    Mat mat = pool.acquire(new Size(30, 20), CvType.CV_8UC1);
+    pool.release(mat);
+
+    Assert.assertSame(mat, pool.acquire(new Size(30, 20), CvType.CV_8UC1));
+    Assert.assertNotSame(mat, pool.acquire(new Size(30, 20), CvType.CV_8UC3));
+    Assert.assertEquals(2, pool.getAllocated());
+    Assert.assertEquals(1, pool.getReused());
+  }
+
+  @Test
+  public void testFreesViewsInsteadOfPooling() {
+    MatPool pool = new MatPool(2);
+    Mat mat = pool.acquire(new Size(30, 20), CvType.CV_8UC1);
+    Mat view = mat.colRange(0, 10);
+
+    pool.release(view);
+
+    Assert.assertTrue(view.empty());
+    Assert.assertFalse(mat.empty());
+    Assert.assertEquals(1, pool.getAllocated());
+  }
+
+  @Test
+  public void testScopeReleasesAllButKept() {
+    MatPool pool = new MatPool(2);
+    Mat kept;
+    Mat temporary;
+
+    try (MatScope scope = new MatScope(pool)) {
+      temporary = scope.acquire(new Size(30, 20), CvType.CV_8UC1);
+      kept = scope.keep(scope.acquire(new Size(30, 20), CvType.CV_8UC1));
+    }
+
+    Assert.assertSame(temporary, pool.acquire(new Size(30, 20), CvType.CV_8UC1));
+    Assert.assertNotSame(kept, pool.acquire(new Size(30, 20), CvType.CV_8UC1));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedOverByteLimit() {
+    // room for two buffers of 600 bytes
+    MatPool pool = new MatPool(2, 1200);
+    Mat first = pool.acquire(new Size(30, 20), CvType.CV_8UC1);
+    Mat second = pool.acquire(new Size(20, 30), CvType.CV_8UC1);
+    Mat third = pool.acquire(new Size(10, 60), CvType.CV_8UC1);
+
+    pool.release(first);
+    pool.release(second);
+    pool.release(third);
+
+    Assert.assertTrue(first.empty());
+    Assert.assertEquals(1200, pool.getPooledBytes());
+    Assert.assertSame(second, pool.acquire(new Size(20, 30), CvType.CV_8UC1));
+    Assert.assertSame(third, pool.acquire(new Size(10, 60), CvType.CV_8UC1));
+    Assert.assertEquals(0, pool.getPooledBytes());
+  }
+
+  @Test
+  public void testScopeReleasesTrackedList() {
+    MatPool pool = new MatPool(2);
+    List<Mat> channels = new ArrayList<>();
+
+    try (MatScope scope = new MatScope(pool)) {
+      Core.split(new Mat(20, 30, CvType.CV_8UC3), channels);
+      scope.trackAll(channels);
+    }
+
+    Assert.assertEquals(3, channels.size());
+    Assert.assertTrue(channels.get(2).empty());
+    Assert.assertSame(channels.get(0), pool.acquire(new Size(30, 20), CvType.CV_8UC1));
+  }
+}
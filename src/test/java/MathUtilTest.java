@@ -0,0 +1,23 @@
+import ch.sebastianhaeni.thermotrains.util.MathUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MathUtilTest {
+
+  @Test
+  public void testMedianAngleAcrossZero() {
+    // the two middle angles are on both sides of 0
+    Assert.assertEquals(.05, MathUtil.medianAngle(new Double[] { 359.8, .3, 359.9, .2 }), 1e-9);
+    Assert.assertEquals(359.85, MathUtil.medianAngle(new Double[] { 359.8, .1, 359.9, 359.7 }), 1e-9);
+    Assert.assertEquals(359.9, MathUtil.medianAngle(new Double[] { 359.8, .3, 359.9 }), 1e-9);
+  }
+
+  @Test
+  public void testAngleRanges() {
+    Assert.assertEquals(-.2, MathUtil.signedAngle(359.8), 1e-9);
+    Assert.assertEquals(180, MathUtil.signedAngle(180), 0);
+    Assert.assertEquals(-179, MathUtil.signedAngle(181), 1e-9);
+    Assert.assertEquals(359.8, MathUtil.unsignedAngle(-.2), 1e-9);
+    Assert.assertEquals(0, MathUtil.unsignedAngle(360), 0);
+  }
+}
@@ -0,0 +1,178 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+import javax.annotation.Nonnull;
+
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameSource;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.pipeline.PipelinedStages;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * The stages in here only look at the index of the frames, so the frames don't need an image and OpenCV isn't loaded.
+ */
+public class PipelinedStagesTest {
+
+  @Test(timeout = 10000)
+  public void testKeepsOrder() throws InterruptedException {
+    PipelinedStages stages = new PipelinedStages(2);
+    stages.add("pass", (frame, downstream) -> downstream.accept(frame));
+    stages.add("buffer", new BufferingStage());
+    stages.add("pass-again", (frame, downstream) -> downstream.accept(frame));
+
+    List<Integer> indices = Collections.synchronizedList(new ArrayList<>());
+    stages.run(count(100), frame -> indices.add(frame.getIndex()));
+
+    Assert.assertEquals(100, indices.size());
+    for (int i = 0; i < indices.size(); i++) {
+      Assert.assertEquals(i, (int) indices.get(i));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testFinishesOnceAfterTheLastFrame() throws InterruptedException {
+    List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+    PipelinedStages stages = new PipelinedStages(1);
+    stages.add("record", new FrameStage() {
+      @Override
+      public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+        events.add("process " + frame.getIndex());
+      }
+
+      @Override
+      public void finish(@Nonnull Consumer<Frame> downstream) {
+        events.add("finish");
+        downstream.accept(frame(42));
+      }
+    });
+
+    List<Integer> indices = Collections.synchronizedList(new ArrayList<>());
+    stages.run(count(3), frame -> indices.add(frame.getIndex()));
+
+    Assert.assertEquals(4, events.size());
+    Assert.assertEquals("process 2", events.get(2));
+    Assert.assertEquals("finish", events.get(3));
+    Assert.assertEquals(Collections.singletonList(42), indices);
+  }
+
+  @Test(timeout = 10000)
+  public void testFailureCancelsSource() throws InterruptedException {
+    CountDownLatch sourceDone = new CountDownLatch(1);
+
+    PipelinedStages stages = new PipelinedStages(2);
+    stages.add("fail", (frame, downstream) -> {
+      if (frame.getIndex() == 5) {
+        throw new IllegalStateException("failed on frame 5");
+      }
+
+      downstream.accept(frame);
+    });
+
+    try {
+      stages.run(endless(sourceDone), frame -> {
+        // nop
+      });
+      Assert.fail("The failure of the stage should be rethrown");
+    } catch (IllegalStateException e) {
+      Assert.assertEquals("failed on frame 5", e.getMessage());
+    }
+
+    Assert.assertTrue(sourceDone.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test(timeout = 10000)
+  public void testInterruptCancelsSource() throws InterruptedException {
+    CountDownLatch sourceDone = new CountDownLatch(1);
+    AtomicReference<Throwable> thrown = new AtomicReference<>();
+
+    PipelinedStages stages = new PipelinedStages(2);
+    stages.add("pass", (frame, downstream) -> downstream.accept(frame));
+
+    // nothing is ever taken from the queue in front of the blocking sink, so the source blocks as well
+    CountDownLatch sinkBlocked = new CountDownLatch(1);
+    Thread runner = new Thread(() -> {
+      try {
+        stages.run(endless(sourceDone), frame -> {
+          sinkBlocked.countDown();
+          try {
+            new CountDownLatch(1).await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        });
+      } catch (InterruptedException | RuntimeException e) {
+        thrown.set(e);
+      }
+    });
+
+    runner.start();
+    Assert.assertTrue(sinkBlocked.await(5, TimeUnit.SECONDS));
+
+    runner.interrupt();
+    runner.join();
+
+    Assert.assertTrue(thrown.get() instanceof InterruptedException);
+    Assert.assertTrue(sourceDone.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testRejectsEmptyQueues() {
+    new PipelinedStages(0);
+  }
+
+  @Nonnull
+  private static Frame frame(int index) {
+    return new Frame(index, null);
+  }
+
+  @Nonnull
+  private static FrameSource count(int frames) {
+    return downstream -> {
+      for (int i = 0; i < frames; i++) {
+        downstream.accept(frame(i));
+      }
+    };
+  }
+
+  /**
+   * Creates a source producing frames until it's cancelled, which counts down the latch.
+   */
+  @Nonnull
+  private static FrameSource endless(@Nonnull CountDownLatch done) {
+    return downstream -> {
+      try {
+        for (int i = 0; ; i++) {
+          downstream.accept(frame(i));
+        }
+      } finally {
+        done.countDown();
+      }
+    };
+  }
+
+  /**
+   * Holds back all frames until the last one is seen, like the stages taking the median of all frames.
+   */
+  private static final class BufferingStage implements FrameStage {
+    private final List<Frame> frames = new ArrayList<>();
+
+    @Override
+    public void process(@Nonnull Frame frame, @Nonnull Consumer<Frame> downstream) {
+      frames.add(frame);
+    }
+
+    @Override
+    public void finish(@Nonnull Consumer<Frame> downstream) {
+      frames.forEach(downstream);
+      frames.clear();
+    }
+  }
+}
@@ -0,0 +1,85 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import ch.sebastianhaeni.thermotrains.pipeline.RunManifest;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RunManifestTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testResumesWithSameInputs() throws IOException {
+    String output = folder.getRoot().getPath();
+    File stepFolder = folder.newFolder("1-extracted");
+    write(new File(stepFolder, "1.png"), "frame");
+
+    RunManifest manifest = RunManifest.load(output, "fingerprint");
+    Assert.assertFalse(manifest.isComplete(1, "step=1"));
+
+    manifest.complete(1, "step=1", stepFolder.getPath());
+    manifest.complete(2, "step=2", null);
+
+    RunManifest reloaded = RunManifest.load(output, "fingerprint");
+    Assert.assertTrue(reloaded.isComplete(1, "step=1"));
+    Assert.assertTrue(reloaded.hasOutput(1));
+    Assert.assertTrue(reloaded.isComplete(2, "step=2"));
+    Assert.assertFalse(reloaded.hasOutput(2));
+
+    Assert.assertFalse(reloaded.isComplete(1, "step=changed"));
+    Assert.assertFalse(RunManifest.load(output, "other fingerprint").isComplete(1, "step=1"));
+  }
+
+  @Test
+  public void testChangedOutputIsIncomplete() throws IOException {
+    File stepFolder = folder.newFolder("1-extracted");
+    write(new File(stepFolder, "1.png"), "frame");
+
+    RunManifest manifest = RunManifest.load(folder.getRoot().getPath(), "fingerprint");
+    manifest.complete(1, "step=1", stepFolder.getPath());
+
+    write(new File(stepFolder, "1.png"), "other frame");
+    Assert.assertFalse(manifest.isComplete(1, "step=1"));
+  }
+
+  @Test
+  public void testInvalidatesLaterSteps() {
+    String output = folder.getRoot().getPath();
+
+    RunManifest manifest = RunManifest.load(output, "fingerprint");
+    manifest.complete(1, "step=1", null);
+    manifest.complete(2, "step=2", null);
+    manifest.complete(3, "step=3", null);
+
+    manifest.invalidateFrom(2);
+
+    RunManifest reloaded = RunManifest.load(output, "fingerprint");
+    Assert.assertTrue(reloaded.isComplete(1, "step=1"));
+    Assert.assertFalse(reloaded.isComplete(2, "step=2"));
+    Assert.assertFalse(reloaded.isComplete(3, "step=3"));
+  }
+
+  @Test
+  public void testFingerprint() throws IOException {
+    File video = folder.newFile("train.mp4");
+    write(video, "video");
+    String missing = new File(folder.getRoot(), "metadata.mp4").getPath();
+
+    String fingerprint = RunManifest.fingerprint(video.getPath());
+    Assert.assertEquals(fingerprint, RunManifest.fingerprint(video.getPath()));
+    Assert.assertEquals(fingerprint, RunManifest.fingerprint(video.getPath(), missing));
+
+    write(video, "longer video");
+    Assert.assertNotEquals(fingerprint, RunManifest.fingerprint(video.getPath()));
+  }
+
+  private static void write(File file, String content) throws IOException {
+    Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+  }
+}
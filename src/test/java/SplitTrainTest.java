@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.sebastianhaeni.thermotrains.internals.SplitTrain;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.FrameStage;
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+public class SplitTrainTest {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  private static final int WIDTH = 6000;
+
+  @Test
+  public void testCutsReverseTrainLikeLiveStage() {
+    List<Frame> cars = new ArrayList<>();
+    SplitTrain.stage().process(new Frame(0, createPanorama(), Direction.REVERSE), cars::add);
+
+    // the reverse train passes by from the right, like the segments of the live stitcher
+    Mat panorama = createPanorama();
+    List<Frame> liveCars = new ArrayList<>();
+    FrameStage live = SplitTrain.liveStage();
+    live.process(new Frame(0, panorama.colRange(WIDTH / 2, WIDTH), Direction.REVERSE), liveCars::add);
+    live.process(new Frame(1, panorama.colRange(0, WIDTH / 2), Direction.REVERSE), liveCars::add);
+    live.finish(liveCars::add);
+
+    // the gaps are 1800 columns apart and the rear car is too short, the front car starts at the right edge
+    Assert.assertEquals(3, cars.size());
+    Assert.assertEquals(cars.size(), liveCars.size());
+
+    for (int i = 0; i < cars.size(); i++) {
+      Mat car = cars.get(i).getMat();
+      Mat liveCar = liveCars.get(i).getMat();
+
+      Assert.assertEquals(i + 1, cars.get(i).getIndex());
+      Assert.assertEquals(i + 1, liveCars.get(i).getIndex());
+      Assert.assertEquals(car.size(), liveCar.size());
+      Assert.assertEquals(0, Core.norm(car, liveCar), 0);
+    }
+
+    Assert.assertTrue(cars.get(0).getMat().cols() > 1500);
+  }
+
+  /**
+   * Creates a bright panorama with dark gaps between the cars closer to its left edge, so cutting from the wrong end
+   * of the train gives other cars. The columns get brighter to the right, so the cars can be told apart.
+   */
+  private static Mat createPanorama() {
+    Mat panorama = new Mat(60, WIDTH, CvType.CV_8UC3);
+
+    for (int x = 0; x < WIDTH; x++) {
+      panorama.col(x).setTo(new Scalar(100 + x % 150, 100, 200));
+    }
+
+    for (int gap : new int[] { 700, 2500, 4300 }) {
+      panorama.colRange(gap, gap + 40).setTo(new Scalar(0, 0, 0));
+    }
+
+    return panorama;
+  }
+}
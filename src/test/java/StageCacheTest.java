@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import ch.sebastianhaeni.thermotrains.internals.Straighten;
+import ch.sebastianhaeni.thermotrains.internals.TrainStitcher;
+import ch.sebastianhaeni.thermotrains.pipeline.Frame;
+import ch.sebastianhaeni.thermotrains.pipeline.StageCache;
+import ch.sebastianhaeni.thermotrains.util.Direction;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+
+public class StageCacheTest {
+  static {
+    // load OpenCV native library
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+  }
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testKeys() {
+    String straighten = StageCache.describeParameters(Straighten.class);
+    String stitch = StageCache.describeParameters(TrainStitcher.class);
+
+    Assert.assertTrue(straighten.contains("HOUGH_THRESHOLD=400"));
+    Assert.assertTrue(stitch.contains("VERTICAL_CROP=100"));
+
+    Assert.assertEquals(StageCache.hash("video", straighten), StageCache.hash("video", straighten));
+    Assert.assertNotEquals(StageCache.hash("video", straighten), StageCache.hash("video", stitch));
+    Assert.assertNotEquals(StageCache.hash("video", straighten), StageCache.hash("other video", straighten));
+  }
+
+  @Test
+  public void testRoundTrip() {
+    StageCache cache = new StageCache(folder.getRoot().getPath(), Long.MAX_VALUE);
+    Mat mat = new Mat(20, 30, CvType.CV_8UC3, new Scalar(1, 2, 3));
+
+    StageCache.Writer writer = cache.write("key");
+    writer.write(new Frame(7, mat));
+
+    Assert.assertFalse(cache.contains("key"));
+    writer.commit();
+    Assert.assertTrue(cache.contains("key"));
+
+    List<Frame> frames = new ArrayList<>();
+    cache.load("key", frames::add);
+
+    Assert.assertEquals(1, frames.size());
+    Assert.assertEquals(7, frames.get(0).getIndex());
+    Assert.assertEquals(0, Core.norm(mat, frames.get(0).getMat()), 0);
+  }
+
+  @Test
+  public void testKeepsOrderAndDirection() {
+    StageCache cache = new StageCache(folder.getRoot().getPath(), Long.MAX_VALUE);
+
+    StageCache.Writer writer = cache.write("key");
+    writer.write(new Frame(10000, new Mat(2, 3, CvType.CV_8UC3), Direction.REVERSE));
+    writer.write(new Frame(9999, new Mat(2, 3, CvType.CV_8UC3), Direction.REVERSE));
+    writer.write(new Frame(2, new Mat(2, 3, CvType.CV_8UC3)));
+    writer.commit();
+
+    List<Frame> frames = new ArrayList<>();
+    cache.load("key", frames::add);
+
+    Assert.assertEquals(2, frames.get(0).getIndex());
+    Assert.assertNull(frames.get(0).getDirection());
+    Assert.assertEquals(9999, frames.get(1).getIndex());
+    Assert.assertEquals(10000, frames.get(2).getIndex());
+    Assert.assertEquals(Direction.REVERSE, frames.get(2).getDirection());
+  }
+
+  @Test
+  public void testCommitsSameKeyTwice() {
+    StageCache cache = new StageCache(folder.getRoot().getPath(), Long.MAX_VALUE);
+    StageCache.Writer first = cache.write("key");
+    StageCache.Writer second = cache.write("key");
+
+    first.write(new Frame(0, new Mat(2, 3, CvType.CV_8UC3)));
+    second.write(new Frame(0, new Mat(2, 3, CvType.CV_8UC3)));
+    first.commit();
+    second.commit();
+
+    Assert.assertTrue(cache.contains("key"));
+    Assert.assertEquals(1, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() throws IOException {
+    StageCache cache = new StageCache(folder.getRoot().getPath(), 150);
+
+    createEntry("old", 100, 1000);
+    createEntry("new", 100, 2000);
+
+    cache.evict();
+
+    Assert.assertFalse(cache.contains("old"));
+    Assert.assertTrue(cache.contains("new"));
+  }
+
+  @Test
+  public void testKeepsPinnedEntries() throws IOException {
+    StageCache cache = new StageCache(folder.getRoot().getPath(), 0);
+    createEntry("key", 100, 1000);
+
+    Assert.assertTrue(cache.pin("key"));
+    cache.evict();
+    Assert.assertTrue(cache.contains("key"));
+
+    cache.unpin("key");
+    cache.evict();
+    Assert.assertFalse(cache.contains("key"));
+
+    Assert.assertFalse(cache.pin("key"));
+    Assert.assertFalse(cache.load("key", frame -> Assert.fail("There is no entry")));
+  }
+
+  private void createEntry(String key, int size, long lastModified) throws IOException {
+    File entry = folder.newFolder(key);
+    Path file = new File(entry, "1.png").toPath();
+
+    Files.write(file, new byte[size]);
+    Files.setLastModifiedTime(entry.toPath(), FileTime.fromMillis(lastModified));
+  }
+}
@@ -0,0 +1,36 @@
+import java.util.HashSet;
+import java.util.Set;
+
+import ch.sebastianhaeni.thermotrains.internals.TrainPresence;
+import org.junit.Assert;
+import org.junit.Test;
+import org.opencv.core.Range;
+
+public class TrainPresenceTest {
+
+  @Test
+  public void testFindsTrainInTheMiddle() {
+    Set<Integer> probed = new HashSet<>();
+
+    Range range = TrainPresence.search(1000, 30, position -> {
+      probed.add(position);
+      return position >= 100 && position < 200;
+    });
+
+    Assert.assertEquals(new Range(100, 200), range);
+    // the coarse probes and two binary searches, far from every frame
+    Assert.assertTrue(probed.size() < 50);
+  }
+
+  @Test
+  public void testFindsTrainAtTheEdges() {
+    Assert.assertEquals(new Range(0, 57), TrainPresence.search(1000, 30, position -> position < 57));
+    Assert.assertEquals(new Range(950, 1000), TrainPresence.search(1000, 30, position -> position >= 950));
+    Assert.assertEquals(new Range(0, 1000), TrainPresence.search(1000, 30, position -> true));
+  }
+
+  @Test
+  public void testFindsNoTrain() {
+    Assert.assertNull(TrainPresence.search(1000, 30, position -> false));
+  }
+}